@@ -0,0 +1,298 @@
+package edu.usfca.cs272;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Class responsible for streaming the text files out of gzip files and zip and
+ * tar archives without extracting them to disk. Each text entry is read into
+ * memory one at a time and passed on with a location made of the archive's
+ * path, {@link #SEPARATOR}, and the entry's name, like
+ * {@code archive.zip!/path.txt}. A gzip file holding a single text file keeps
+ * the path of the gzip file as its location.
+ *
+ * @author ryank
+ *
+ */
+public class ArchiveReader {
+
+	/**
+	 * separates the path of an archive from the name of an entry in a location
+	 */
+	public static final String SEPARATOR = "!/";
+
+	/**
+	 * the size of a tar header and the unit tar entries are padded to
+	 */
+	private static final int BLOCK = 512;
+
+	/**
+	 * the largest entry that can be read into memory, in any format
+	 */
+	private static final long MAX_ENTRY = Integer.MAX_VALUE - 8;
+
+	/**
+	 * Prevents instantiating this class of static methods
+	 */
+	private ArchiveReader() {
+	}
+
+	/**
+	 * the action to take on each text entry of an archive
+	 *
+	 * @author ryank
+	 *
+	 */
+	@FunctionalInterface
+	public interface EntryAction {
+		/**
+		 * takes an action on a text entry
+		 *
+		 * @param location the location of the entry
+		 * @param bytes    the bytes of the entry
+		 * @throws IOException if the action fails
+		 */
+		void accept(String location, byte[] bytes) throws IOException;
+	}
+
+	/**
+	 * This method reads each text entry of an archive in order, passing it to the
+	 * action before reading the next one
+	 *
+	 * @param path   the path of the archive
+	 * @param action the action to take on each text entry
+	 * @throws IOException if the archive cannot be read or is corrupt, or the
+	 *                     action fails
+	 *
+	 * @see FileFinder#isArchive(Path)
+	 */
+	public static void read(Path path, EntryAction action) throws IOException {
+		String lower = path.toString().toLowerCase();
+		String archive = path.toString();
+		try (InputStream in = Files.newInputStream(path)) {
+			if (lower.endsWith(".tar.gz") || lower.endsWith(".tgz")) {
+				readTar(new GZIPInputStream(in, 1 << 16), archive, action);
+			} else if (lower.endsWith(".tar")) {
+				readTar(in, archive, action);
+			} else if (lower.endsWith(".zip")) {
+				readZip(new ZipInputStream(in, StandardCharsets.UTF_8), archive, action);
+			} else if (lower.endsWith(".gz")) {
+				try (GZIPInputStream gzip = new GZIPInputStream(in, 1 << 16)) {
+					action.accept(archive, readEntry(gzip));
+				}
+			} else {
+				throw new IOException("Not an archive: " + path);
+			}
+		}
+	}
+
+	/**
+	 * This method reads the text entries of a zip archive
+	 *
+	 * @param zip     the zip stream
+	 * @param archive the path of the archive
+	 * @param action  the action to take on each text entry
+	 * @throws IOException if the archive cannot be read or the action fails
+	 */
+	private static void readZip(ZipInputStream zip, String archive, EntryAction action) throws IOException {
+		ZipEntry entry;
+		while ((entry = zip.getNextEntry()) != null) {
+			if (!entry.isDirectory() && FileFinder.isTextFile(entry.getName())) {
+				action.accept(location(archive, entry.getName()), readEntry(zip));
+			}
+		}
+	}
+
+	/**
+	 * This method reads the regular text files of a tar archive, using the long
+	 * names of GNU and POSIX (pax) headers when there are any
+	 *
+	 * @param tar     the tar stream
+	 * @param archive the path of the archive
+	 * @param action  the action to take on each text entry
+	 * @throws IOException if the archive cannot be read or is corrupt, or the
+	 *                     action fails
+	 */
+	private static void readTar(InputStream tar, String archive, EntryAction action) throws IOException {
+		byte[] header = new byte[BLOCK];
+		String longName = null;
+		while (tar.readNBytes(header, 0, BLOCK) == BLOCK && !isEmpty(header)) {
+			long size = number(header, 124, 12);
+			byte type = header[156];
+			String name = longName != null ? longName : name(header);
+			longName = null;
+
+			if (type == 'L') {
+				longName = string(readEntry(tar, size), 0, (int) size);
+			} else if (type == 'x') {
+				longName = paxPath(readEntry(tar, size));
+			} else if ((type == '0' || type == 0) && FileFinder.isTextFile(name)) {
+				action.accept(location(archive, name), readEntry(tar, size));
+			} else {
+				tar.skipNBytes(size);
+			}
+			tar.skipNBytes((BLOCK - size % BLOCK) % BLOCK);
+		}
+	}
+
+	/**
+	 * Reads the data of an entry whose size is not known ahead of time, such as a
+	 * compressed file, up to the same limit as any other entry
+	 *
+	 * @param in the stream to read from, up to its end
+	 * @return the bytes of the entry
+	 * @throws IOException if the entry is too large or cannot be read
+	 */
+	private static byte[] readEntry(InputStream in) throws IOException {
+		byte[] bytes = in.readNBytes((int) MAX_ENTRY + 1);
+		if (bytes.length > MAX_ENTRY) {
+			throw new IOException("Archive entry too large to index: more than " + MAX_ENTRY + " bytes");
+		}
+		return bytes;
+	}
+
+	/**
+	 * Reads the data of an entry
+	 *
+	 * @param in   the stream to read from
+	 * @param size the size of the entry
+	 * @return the bytes of the entry
+	 * @throws IOException if the entry is too large or the stream ends early
+	 */
+	private static byte[] readEntry(InputStream in, long size) throws IOException {
+		if (size > MAX_ENTRY) {
+			throw new IOException("Archive entry too large to index: " + size + " bytes");
+		}
+		byte[] bytes = in.readNBytes((int) size);
+		if (bytes.length < size) {
+			throw new EOFException("Archive ends in the middle of an entry");
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns the location of an entry, without any leading {@code ./} or
+	 * {@code /} in its name
+	 *
+	 * @param archive the path of the archive
+	 * @param name    the name of the entry
+	 * @return the location of the entry
+	 */
+	private static String location(String archive, String name) {
+		while (name.startsWith("./") || name.startsWith("/")) {
+			name = name.substring(name.charAt(0) == '.' ? 2 : 1);
+		}
+		return archive + SEPARATOR + name;
+	}
+
+	/**
+	 * Checks whether a tar header is all zeros, which marks the end of the
+	 * archive
+	 *
+	 * @param header the header
+	 * @return true if every byte is zero
+	 */
+	private static boolean isEmpty(byte[] header) {
+		for (byte b : header) {
+			if (b != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the name in a tar header, including its ustar prefix if any
+	 *
+	 * @param header the header
+	 * @return the name of the entry
+	 */
+	private static String name(byte[] header) {
+		String name = string(header, 0, 100);
+		if (string(header, 257, 5).equals("ustar")) {
+			String prefix = string(header, 345, 155);
+			if (!prefix.isEmpty()) {
+				return prefix + "/" + name;
+			}
+		}
+		return name;
+	}
+
+	/**
+	 * Returns a field of a tar header as a string, ending at its first zero byte
+	 *
+	 * @param bytes  the bytes to read
+	 * @param offset the start of the field
+	 * @param length the length of the field
+	 * @return the string in the field
+	 */
+	private static String string(byte[] bytes, int offset, int length) {
+		int end = offset;
+		while (end < offset + length && bytes[end] != 0) {
+			end++;
+		}
+		return new String(bytes, offset, end - offset, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Returns a number field of a tar header, written in octal or, for large
+	 * sizes, in big-endian binary marked by the high bit of its first byte
+	 *
+	 * @param header the header
+	 * @param offset the start of the field
+	 * @param length the length of the field
+	 * @return the number in the field
+	 * @throws IOException if the field is not a number
+	 */
+	private static long number(byte[] header, int offset, int length) throws IOException {
+		long value = 0;
+		if ((header[offset] & 0x80) != 0) {
+			value = header[offset] & 0x7F;
+			for (int i = offset + 1; i < offset + length; i++) {
+				value = (value << 8) | (header[i] & 0xFF);
+			}
+			return value;
+		}
+		for (int i = offset; i < offset + length; i++) {
+			byte b = header[i];
+			if (b >= '0' && b <= '7') {
+				value = (value << 3) | (b - '0');
+			} else if (b != ' ' && b != 0) {
+				throw new IOException("Corrupt tar header");
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the path of a pax extended header, made of records like
+	 * {@code "30 path=some/long/name.txt\n"}
+	 *
+	 * @param bytes the data of the extended header
+	 * @return the path, or null if there is none
+	 */
+	private static String paxPath(byte[] bytes) {
+		String records = new String(bytes, StandardCharsets.UTF_8);
+		int start = 0;
+		while (start < records.length()) {
+			int space = records.indexOf(' ', start);
+			int end = records.indexOf('\n', space + 1);
+			if (space < 0 || end < 0) {
+				break;
+			}
+			String record = records.substring(space + 1, end);
+			if (record.startsWith("path=")) {
+				return record.substring(5);
+			}
+			start = end + 1;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,139 @@
+package edu.usfca.cs272;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import opennlp.tools.stemmer.Stemmer;
+import opennlp.tools.stemmer.snowball.SnowballStemmer;
+import opennlp.tools.stemmer.snowball.SnowballStemmer.ALGORITHM;
+
+/**
+ * Class responsible for stemming words through a cache, since most words in
+ * text are repeats of a small vocabulary. Safe to share between threads: each
+ * thread gets its own snowball stemmer (which is not thread safe) and a small
+ * cache of its most recent words, backed by a concurrent cache shared by every
+ * thread.
+ *
+ * <p>
+ * The shared cache stops taking new words once it is full instead of evicting
+ * any. The most common words show up early in almost any text, so they are
+ * already cached by then, and the rare words after them are not worth the cost
+ * of tracking what to evict.
+ *
+ * @author ryank
+ *
+ */
+public class CachingStemmer implements Stemmer {
+
+	/**
+	 * number of words in each thread's cache, a power of two
+	 */
+	private static final int LOCAL_SIZE = 1 << 10;
+
+	/**
+	 * the stemming algorithm
+	 */
+	private final ALGORITHM algorithm;
+
+	/**
+	 * the most words the shared cache holds
+	 */
+	private final int capacity;
+
+	/**
+	 * word to stem cache shared by every thread
+	 */
+	private final ConcurrentHashMap<String, String> shared;
+
+	/**
+	 * each thread's stemmer and cache of its most recent words
+	 */
+	private final ThreadLocal<Local> local;
+
+	/**
+	 * CachingStemmer constructor
+	 *
+	 * @param algorithm the stemming algorithm
+	 * @param capacity  the most words the shared cache holds
+	 */
+	public CachingStemmer(ALGORITHM algorithm, int capacity) {
+		this.algorithm = algorithm;
+		this.capacity = capacity;
+		this.shared = new ConcurrentHashMap<>();
+		this.local = ThreadLocal.withInitial(Local::new);
+	}
+
+	/**
+	 * Stems a word, only running the stemmer the first time a word is seen
+	 *
+	 * @param word the word to stem
+	 * @return the stem of the word
+	 */
+	@Override
+	public String stem(CharSequence word) {
+		String key = word.toString();
+		Local cache = local.get();
+		int slot = key.hashCode() & (LOCAL_SIZE - 1);
+		if (key.equals(cache.words[slot])) {
+			return cache.stems[slot];
+		}
+
+		String stem = shared.get(key);
+		if (stem == null) {
+			stem = cache.stemmer.stem(key).toString();
+			if (shared.size() < capacity) {
+				shared.putIfAbsent(key, stem);
+			}
+		}
+		cache.words[slot] = key;
+		cache.stems[slot] = stem;
+		return stem;
+	}
+
+	/**
+	 * Returns the number of words in the shared cache
+	 *
+	 * @return the number of words in the shared cache
+	 */
+	public int size() {
+		return shared.size();
+	}
+
+	@Override
+	public String toString() {
+		return "CachingStemmer: " + algorithm + " (" + shared.size() + " of " + capacity + " words cached)";
+	}
+
+	/**
+	 * Class responsible for a single thread's stemmer and its cache of recent
+	 * words, where each word can only be in the slot its hash picks
+	 *
+	 * @author ryank
+	 *
+	 */
+	private class Local {
+
+		/**
+		 * this thread's stemmer
+		 */
+		private final SnowballStemmer stemmer;
+
+		/**
+		 * the word in each slot
+		 */
+		private final String[] words;
+
+		/**
+		 * the stem of the word in each slot
+		 */
+		private final String[] stems;
+
+		/**
+		 * Local constructor
+		 */
+		private Local() {
+			this.stemmer = new SnowballStemmer(algorithm);
+			this.words = new String[LOCAL_SIZE];
+			this.stems = new String[LOCAL_SIZE];
+		}
+	}
+}
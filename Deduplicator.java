@@ -0,0 +1,165 @@
+package edu.usfca.cs272;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class responsible for finding files with exactly the same bytes as a file
+ * already seen, so each distinct document is only indexed once and its copies
+ * are recorded as aliases of it. Files are grouped by a fast 64-bit hash of
+ * their contents, and a file is only called a duplicate once its bytes match a
+ * file with the same hash, so a hash collision never loses a document. Safe to
+ * share between threads.
+ *
+ * @author ryank
+ *
+ * @see InvertedIndex#addAlias(String, String)
+ */
+public class Deduplicator {
+
+	/**
+	 * the most bytes of a file mapped into memory at once, a multiple of 8
+	 */
+	private static final int MAX_MAP = 1 << 30;
+
+	/**
+	 * the canonical files seen so far with each hash
+	 */
+	private final ConcurrentHashMap<Long, List<Path>> seen;
+
+	/**
+	 * number of files checked
+	 */
+	private final LongAdder checked;
+
+	/**
+	 * number of files found to be duplicates
+	 */
+	private final LongAdder duplicates;
+
+	/**
+	 * number of bytes in the duplicates, which did not need to be indexed
+	 */
+	private final LongAdder skipped;
+
+	/**
+	 * Deduplicator constructor
+	 */
+	public Deduplicator() {
+		this.seen = new ConcurrentHashMap<>();
+		this.checked = new LongAdder();
+		this.duplicates = new LongAdder();
+		this.skipped = new LongAdder();
+	}
+
+	/**
+	 * Checks whether a file has the same bytes as a file seen before. If not, the
+	 * file becomes the canonical copy of its contents.
+	 *
+	 * @param path the file to check
+	 * @return the canonical file with the same bytes, or null if the file is new
+	 * @throws IOException if a file cannot be read
+	 */
+	public Path canonical(Path path) throws IOException {
+		long hash = hash(path);
+		List<Path> canonicals = seen.computeIfAbsent(hash, h -> new ArrayList<>());
+		checked.increment();
+		synchronized (canonicals) {
+			for (Path canonical : canonicals) {
+				if (Files.mismatch(canonical, path) == -1) {
+					duplicates.increment();
+					skipped.add(Files.size(path));
+					return canonical;
+				}
+			}
+			canonicals.add(path);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the number of files checked
+	 *
+	 * @return the number of files checked
+	 */
+	public long getChecked() {
+		return checked.sum();
+	}
+
+	/**
+	 * Returns the number of files found to be duplicates
+	 *
+	 * @return the number of duplicates
+	 */
+	public long getDuplicates() {
+		return duplicates.sum();
+	}
+
+	/**
+	 * Returns the number of bytes in the duplicates, which did not need to be
+	 * indexed
+	 *
+	 * @return the number of bytes skipped
+	 */
+	public long getSkipped() {
+		return skipped.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "Deduplicator: " + getDuplicates() + " of " + getChecked() + " files were duplicates (" + getSkipped()
+				+ " bytes not indexed)";
+	}
+
+	/**
+	 * Returns a 64-bit hash of the bytes of a file, mixing in eight bytes at a
+	 * time. Not cryptographic, since matching hashes are only a hint that two
+	 * files might be the same.
+	 *
+	 * @param path the file to hash
+	 * @return the hash of the file
+	 * @throws IOException if the file cannot be read
+	 */
+	public static long hash(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			long hash = mix(0x9E3779B97F4A7C15L ^ size);
+			for (long start = 0; start < size; start += MAX_MAP) {
+				MappedByteBuffer bytes = channel.map(MapMode.READ_ONLY, start, Math.min(size - start, MAX_MAP));
+				bytes.order(ByteOrder.LITTLE_ENDIAN);
+				while (bytes.remaining() >= Long.BYTES) {
+					hash = mix(hash ^ bytes.getLong());
+				}
+				long tail = 0;
+				for (int shift = 0; bytes.hasRemaining(); shift += Byte.SIZE) {
+					tail |= (bytes.get() & 0xFFL) << shift;
+				}
+				hash = mix(hash ^ tail);
+			}
+			return hash;
+		}
+	}
+
+	/**
+	 * Scrambles the bits of a value so each input bit affects every output bit
+	 * (the finalizer of the SplitMix64 generator)
+	 *
+	 * @param value the value to scramble
+	 * @return the scrambled value
+	 */
+	private static long mix(long value) {
+		value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+		value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+		return value ^ (value >>> 31);
+	}
+}
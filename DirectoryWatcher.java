@@ -0,0 +1,307 @@
+package edu.usfca.cs272;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Class responsible for keeping an inverted index up to date with a directory
+ * as files are created, changed, and deleted. Changes are collected for a
+ * refresh interval after the first one arrives and then applied together:
+ * changed files are indexed into a local index without any lock, and the old
+ * locations are swapped for the new ones in a single write, so searches keep
+ * running the whole time and never see a file half updated.
+ *
+ * @author ryank
+ *
+ */
+public class DirectoryWatcher implements Runnable, AutoCloseable {
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
+	/**
+	 * the directory being watched
+	 */
+	private final Path root;
+
+	/**
+	 * the inverted index to keep up to date
+	 */
+	private final ThreadSafeInvertedIndex invertedIndex;
+
+	/**
+	 * how many milliseconds to collect changes for before applying them
+	 */
+	private final long refresh;
+
+	/**
+	 * the action to take after each batch of changes is applied, or null
+	 */
+	private final Runnable listener;
+
+	/**
+	 * the watch service of the directory and its subdirectories
+	 */
+	private final WatchService watcher;
+
+	/**
+	 * the directory each watch key is for
+	 */
+	private final HashMap<WatchKey, Path> directories;
+
+	/**
+	 * number of batches of changes applied
+	 */
+	private volatile long batches;
+
+	/**
+	 * number of files indexed since the watcher started
+	 */
+	private volatile long indexed;
+
+	/**
+	 * number of locations removed since the watcher started
+	 */
+	private volatile long removed;
+
+	/**
+	 * DirectoryWatcher constructor, which starts watching the directory and its
+	 * subdirectories but does not index anything already in them
+	 *
+	 * @param root          the directory to watch
+	 * @param invertedIndex the inverted index to keep up to date
+	 * @param refresh       how many milliseconds to collect changes for before
+	 *                      applying them
+	 * @param listener      the action to take after each batch of changes is
+	 *                      applied, or null
+	 * @throws IOException if the directory cannot be watched
+	 */
+	public DirectoryWatcher(Path root, ThreadSafeInvertedIndex invertedIndex, long refresh, Runnable listener)
+			throws IOException {
+		this.root = root;
+		this.invertedIndex = invertedIndex;
+		this.refresh = Math.max(0, refresh);
+		this.listener = listener;
+		this.watcher = root.getFileSystem().newWatchService();
+		this.directories = new HashMap<>();
+		register(root);
+	}
+
+	/**
+	 * Watches the directory until the watcher is closed or the thread is
+	 * interrupted, applying each batch of changes as it is collected
+	 */
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				TreeSet<Path> changed = new TreeSet<>();
+				WatchKey key = watcher.take();
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(refresh);
+				boolean overflow = false;
+				while (key != null) {
+					overflow |= collect(key, changed);
+					long remaining = deadline - System.nanoTime();
+					key = remaining > 0 ? watcher.poll(remaining, TimeUnit.NANOSECONDS) : watcher.poll();
+				}
+				if (overflow) {
+					// events were lost, so check everything
+					changed.clear();
+					changed.add(root);
+				}
+				apply(changed);
+				if (listener != null) {
+					listener.run();
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (ClosedWatchServiceException e) {
+			log.debug("Watcher closed.");
+		}
+	}
+
+	/**
+	 * Adds the paths changed by the events of a watch key and resets the key
+	 *
+	 * @param key     the watch key with events
+	 * @param changed the paths changed so far
+	 * @return true if any events were lost
+	 */
+	private boolean collect(WatchKey key, TreeSet<Path> changed) {
+		boolean overflow = false;
+		Path directory = directories.get(key);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				overflow = true;
+			} else if (directory != null) {
+				changed.add(directory.resolve((Path) event.context()));
+			}
+		}
+		if (!key.reset()) {
+			directories.remove(key);
+		}
+		return overflow;
+	}
+
+	/**
+	 * Applies a batch of changes. Every location at or under a changed path is
+	 * removed, and whatever text files are there now are indexed in its place.
+	 *
+	 * @param changed the paths that were created, modified, or deleted
+	 */
+	private void apply(TreeSet<Path> changed) {
+		// aliases too, since a copy of a file can be deleted or changed on its own
+		TreeSet<String> locations = new TreeSet<>(invertedIndex.getLocations());
+		locations.addAll(invertedIndex.getAliasLocations());
+		TreeSet<String> stale = new TreeSet<>();
+		InvertedIndex local = new InvertedIndex();
+		long files = 0;
+
+		for (Path path : changed) {
+			if (hasAncestor(path, changed)) {
+				// already handled with the directory it is in
+				continue;
+			}
+			String location = path.toString();
+			for (String existing : locations.tailSet(location)) {
+				if (!existing.startsWith(location)) {
+					break;
+				}
+				String rest = existing.substring(location.length());
+				if (rest.isEmpty() || rest.startsWith(File.separator) || rest.startsWith(ArchiveReader.SEPARATOR)) {
+					stale.add(existing);
+				}
+			}
+
+			try {
+				if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+					register(path);
+					try (Stream<Path> walk = FileFinder.textFiles(path)) {
+						Iterator<Path> iterator = walk.iterator();
+						while (iterator.hasNext()) {
+							files += index(iterator.next(), local);
+						}
+					}
+				} else if (Files.isRegularFile(path) && FileFinder.isIndexable(path)) {
+					files += index(path, local);
+				}
+			}
+			catch (IOException | UncheckedIOException e) {
+				System.err.printf("Warning: could not read %s.%n", path);
+				log.catching(Level.DEBUG, e);
+			}
+		}
+
+		invertedIndex.update(stale, local);
+		batches++;
+		indexed += files;
+		removed += stale.size();
+		log.debug("Applied {} changes: indexed {} files and removed {} locations.", changed.size(), files,
+				stale.size());
+	}
+
+	/**
+	 * Checks whether any directory a path is in was also changed
+	 *
+	 * @param path    the path to check
+	 * @param changed the paths changed in the batch
+	 * @return true if a parent directory of the path was changed
+	 */
+	private static boolean hasAncestor(Path path, TreeSet<Path> changed) {
+		for (Path parent = path.getParent(); parent != null; parent = parent.getParent()) {
+			if (changed.contains(parent)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Indexes a file into the local index of a batch, skipping it if it cannot be
+	 * read, such as while it is still being written (it will change again)
+	 *
+	 * @param path  the file to index
+	 * @param local the local index of the batch
+	 * @return 1 if the file was indexed, 0 if it was skipped
+	 */
+	private static int index(Path path, InvertedIndex local) {
+		InvertedIndex file = new InvertedIndex();
+		try {
+			IndexBuilder.buildInvertedIndex(path, file);
+		}
+		catch (IOException e) {
+			System.err.printf("Warning: could not index %s.%n", path);
+			log.catching(Level.DEBUG, e);
+			return 0;
+		}
+		local.addAll(file);
+		return 1;
+	}
+
+	/**
+	 * Starts watching a directory and its subdirectories
+	 *
+	 * @param directory the directory to watch
+	 * @throws IOException if a directory cannot be watched
+	 */
+	private void register(Path directory) throws IOException {
+		try (Stream<Path> walk = Files.walk(directory)) {
+			Iterator<Path> iterator = walk.filter(path -> Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS))
+					.iterator();
+			while (iterator.hasNext()) {
+				Path path = iterator.next();
+				directories.put(path.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), path);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of batches of changes applied
+	 *
+	 * @return the number of batches
+	 */
+	public long getBatches() {
+		return batches;
+	}
+
+	/**
+	 * Stops watching the directory, ending {@link #run()}
+	 *
+	 * @throws IOException if the watch service cannot be closed
+	 */
+	@Override
+	public void close() throws IOException {
+		watcher.close();
+	}
+
+	@Override
+	public String toString() {
+		return "DirectoryWatcher: " + root + " (" + batches + " batches, " + indexed + " files indexed, " + removed
+				+ " locations removed)";
+	}
+}
@@ -1,7 +1,10 @@
 package edu.usfca.cs272;
 
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 
 /**
@@ -54,7 +57,7 @@ public class Driver {
 	 * @throws IOException throws an IOException
 	 */
 	public static void multiThreadedGetInputPath(ArgumentParser argParser,
-			ThreadSafeInvertedIndex threadSafeInvertedIndex, WorkQueue workQueue,
+			ThreadSafeInvertedIndex threadSafeInvertedIndex, WorkQueueInterface workQueue,
 			ThreadSafeQueryHandler threadSafeQueryHandler, boolean exact) throws IOException {
 		System.out.println("in multiThreadedGetInputPath");
 		Path path = argParser.getPath("-text");
@@ -101,7 +104,89 @@ public class Driver {
 		}
 	}
 
-	
+	/**
+	 * This method writes the index and counts built on disk when the index was too
+	 * large to keep in memory
+	 * 
+	 * @param parser ArgumentParser object
+	 * @param spimi  the builder holding the runs of the index
+	 * @throws IOException throws an IOException
+	 */
+	public static void writeOutput(ArgumentParser parser, SpimiIndexBuilder spimi) throws IOException {
+		if (parser.hasFlag("-index")) {
+			Path path = parser.getPath("-index", Path.of("index.json"));
+			spimi.toJson(path);
+		}
+		if (parser.hasFlag("-counts")) {
+			try {
+				Path countsPath = parser.getPath("-counts", Path.of("counts.json"));
+				spimi.countsToJson(countsPath);
+			} catch (IOException e) {
+				System.out.println("Invalid counts path");
+			}
+		}
+	}
+
+	/**
+	 * This method keeps the index up to date with the -text directory until the
+	 * program is stopped, searching the queries again and rewriting the output
+	 * after each batch of changes
+	 * 
+	 * @param parser                  ArgumentParser object
+	 * @param threadSafeInvertedIndex the index to keep up to date
+	 * @param workQueue               the work queue to search with
+	 * @param limit                   the most results to keep for each query, or 0
+	 *                                for all of them
+	 * @param edits                   the most edits of a fuzzy match, or 0 for none
+	 * @param batch                   the number of query lines searched together
+	 */
+	public static void watch(ArgumentParser parser, ThreadSafeInvertedIndex threadSafeInvertedIndex,
+			WorkQueueInterface workQueue, int limit, int edits, int batch) {
+		// milliseconds to collect changes for before applying them
+		int refresh = parser.getInteger("-watch", 1000);
+		Runnable listener = () -> {
+			ThreadSafeQueryHandler queryHandler = new ThreadSafeQueryHandler(threadSafeInvertedIndex, workQueue, limit,
+					edits, batch);
+			try {
+				if (parser.hasValue("-query")) {
+					queryHandler.processQuery(Path.of(parser.getString("-query")), parser.hasFlag("-exact"));
+				}
+				writeOutput(parser, threadSafeInvertedIndex, queryHandler);
+			} catch (IOException e) {
+				System.out.println("IOException trying to write output");
+			}
+		};
+
+		try (DirectoryWatcher watcher = new DirectoryWatcher(parser.getPath("-text"), threadSafeInvertedIndex, refresh,
+				listener)) {
+			System.out.println("Watching " + parser.getPath("-text") + " for changes...");
+			watcher.run();
+		} catch (IOException e) {
+			System.out.println("Unable to watch " + parser.getPath("-text"));
+		}
+	}
+
+	/**
+	 * This method prints how each line of the query file would be searched
+	 * 
+	 * @param queryPath    the path of the query file
+	 * @param queryHandler the query handler to explain the queries with
+	 * @param exact        determines exact or partial search
+	 * @throws IOException throws an IOException
+	 */
+	public static void explainQueries(Path queryPath, QueryHandlerInterface queryHandler, boolean exact)
+			throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(queryPath, StandardCharsets.UTF_8)) {
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				String plan = queryHandler.explain(line, exact);
+				if (plan != null) {
+					System.out.println(plan);
+				}
+			}
+		}
+	}
+
 	/**
 	 * Initializes the classes necessary based on the provided command-line
 	 * arguments. This includes (but is not limited to) how to build or search an
@@ -115,35 +200,106 @@ public class Driver {
 		
 		InvertedIndex invertedIndex = null;
 		QueryHandlerInterface queryHandler = null;		
-		WorkQueue workQueue = null;
+		WorkQueueInterface workQueue = null;
 		ThreadSafeInvertedIndex threadSafeInvertedIndex = null;
+		SpimiIndexBuilder spimi = null;
 		boolean multithreading = argParser.hasFlag("-threads");
 		boolean html = argParser.hasFlag("-html");
 		String seedUrl = argParser.getString("-html");
 		int maxCrawls = argParser.getInteger("-max", 1);
+		int limit = argParser.getInteger("-top", 0);
+		int edits = argParser.hasFlag("-fuzzy") ? argParser.getInteger("-fuzzy", 1) : 0;
+		if (argParser.hasFlag("-fuzzy") && (edits < 1 || edits > 2)) {
+			edits = 1;
+		}
+		int batch = argParser.hasFlag("-batch") ? argParser.getInteger("-batch", 256) : 0;
+		int parallelThreshold = argParser.hasFlag("-parallel") ? argParser.getInteger("-parallel", 10000) : 0;
+		int timeout = argParser.hasFlag("-timeout") ? argParser.getInteger("-timeout", 100) : 0;
 		
 		
 		
-		if (multithreading || html) {
+		if (multithreading || html || argParser.hasFlag("-watch")) {
 			int threads = argParser.getInteger("-threads");
 			if (!argParser.hasValue("-threads") || threads < 1) {
 				threads = 5;
 			}
 			
-			workQueue = new WorkQueue(threads);
-			threadSafeInvertedIndex = new ThreadSafeInvertedIndex();
+			// bounds how many tasks can wait in the queue, 0 for no limit
+			int capacity = argParser.getInteger("-capacity", 0);
+			WorkQueue.Policy policy = WorkQueue.Policy.BLOCK;
+			if (argParser.hasValue("-policy")) {
+				try {
+					policy = WorkQueue.Policy.valueOf(argParser.getString("-policy").toUpperCase().replace('-', '_'));
+				} catch (IllegalArgumentException e) {
+					System.out.println("Unknown policy, blocking when the work queue is full.");
+				}
+			}
+			if (policy == WorkQueue.Policy.DROP) {
+				// indexing, crawling, and query files all need every task to run
+				System.out.println("Cannot drop work while indexing or searching, blocking when the work queue is full.");
+				policy = WorkQueue.Policy.BLOCK;
+			}
+			if (argParser.hasFlag("-steal") && (argParser.hasFlag("-capacity") || argParser.hasFlag("-policy"))) {
+				System.out.println("The work-stealing queue is unbounded, ignoring -capacity and -policy.");
+			}
+			workQueue = argParser.hasFlag("-steal") ? new StealingWorkQueue(threads)
+					: new WorkQueue(threads, capacity, policy);
+			threadSafeInvertedIndex = new ThreadSafeInvertedIndex(parallelThreshold, timeout);
 			invertedIndex = threadSafeInvertedIndex;
-			queryHandler = new ThreadSafeQueryHandler(threadSafeInvertedIndex, workQueue);
+			queryHandler = new ThreadSafeQueryHandler(threadSafeInvertedIndex, workQueue, limit, edits, batch);
 		}
 		else {
-			invertedIndex = new InvertedIndex();
-			queryHandler = new QueryHandler(invertedIndex);
+			invertedIndex = new InvertedIndex(parallelThreshold, timeout);
+			queryHandler = new QueryHandler(invertedIndex, limit, edits, batch);
 		}
 		
 		if (argParser.hasFlag("-text") && argParser.hasValue("-text")) {
 			Path path = argParser.getPath("-text");
 			try {
-				if (threadSafeInvertedIndex != null && workQueue != null) {
+				if (argParser.hasFlag("-spimi")) {
+					// budget in MiB, defaulting to a quarter of the heap
+					long budget = argParser.getInteger("-spimi", 0) * (1L << 20);
+					if (budget <= 0) {
+						budget = Runtime.getRuntime().maxMemory() / 4;
+					}
+					// only kept once built, so a failed build writes no output
+					SpimiIndexBuilder builder = new SpimiIndexBuilder(budget);
+					try {
+						builder.build(path);
+						spimi = builder;
+					}
+					catch (IOException e) {
+						System.out.println("Could not build the index on disk, not writing output.");
+						try {
+							builder.close();
+						} catch (IOException closing) {
+							System.out.println("Could not delete the index runs");
+						}
+						if (workQueue != null) {
+							workQueue.shutdown();
+						}
+						return;
+					}
+				}
+				else if (threadSafeInvertedIndex != null && workQueue != null && argParser.hasFlag("-pipeline")) {
+					int threads = workQueue.size();
+					IndexPipeline pipeline = new IndexPipeline(threadSafeInvertedIndex, Math.max(1, threads / 4), threads,
+							Math.max(1, threads / 2), 4 * threads);
+					pipeline.build(path);
+					System.out.println(pipeline);
+				}
+				else if (argParser.hasFlag("-dedup")) {
+					Deduplicator deduplicator = new Deduplicator();
+					if (threadSafeInvertedIndex != null && workQueue != null) {
+						ThreadSafeInvertedIndexBuilder.build(path, threadSafeInvertedIndex, workQueue,
+								ThreadSafeInvertedIndexBuilder.CHUNK_SIZE, deduplicator);
+					}
+					else {
+						IndexBuilder.build(path, invertedIndex, deduplicator);
+					}
+					System.out.println(deduplicator);
+				}
+				else if (threadSafeInvertedIndex != null && workQueue != null) {
 					ThreadSafeInvertedIndexBuilder.build(path, threadSafeInvertedIndex, workQueue);
 				} 
 				else {
@@ -156,8 +312,14 @@ public class Driver {
 		}
 		
 		if(argParser.hasFlag("-html") && argParser.hasValue("-html")) {
+			NearDuplicateFinder nearDuplicateFinder = null;
+			if (argParser.hasFlag("-simhash")) {
+				nearDuplicateFinder = new NearDuplicateFinder(argParser.getInteger("-simhash", 3));
+			}
+			// fetches in flight at once on virtual threads, or 0 to fetch on the work queue
+			int fetches = argParser.hasFlag("-virtual") ? Math.max(1, argParser.getInteger("-virtual", 1000)) : 0;
 			WebIndexBuilder webIndexBuilder = new WebIndexBuilder(threadSafeInvertedIndex, workQueue,
-					 seedUrl, maxCrawls);
+					 seedUrl, maxCrawls, nearDuplicateFinder, argParser.hasFlag("-alias"), fetches);
 //			System.out.println("Max crawls: " + maxCrawls);
 //			System.out.println("Seed URL: " + seedUrl);
 			try {
@@ -165,11 +327,40 @@ public class Driver {
 			} catch (MalformedURLException e) {
 				System.out.println("MalformedURLException");
 			}
+			if (nearDuplicateFinder != null) {
+				System.out.println(nearDuplicateFinder);
+			}
 		}
+		if (spimi != null) {
+			try {
+				writeOutput(argParser, spimi);
+			} catch (IOException e) {
+				System.out.println("IOException trying to write output");
+			}
+			try {
+				spimi.close();
+			} catch (IOException e) {
+				System.out.println("Could not delete the index runs");
+			}
+			if (argParser.hasFlag("-query")) {
+				System.out.println("Index built on disk, not searching.");
+			}
+			if (workQueue != null) {
+				if (argParser.hasFlag("-capacity")) {
+					System.out.println(workQueue);
+				}
+				workQueue.shutdown();
+			}
+			return;
+		}
+		
 		if (argParser.hasFlag("-query") && argParser.hasValue("-query")) {
 			try {
 				Path queryPath = Path.of(argParser.getString("-query"));
 				queryHandler.processQuery(queryPath, argParser.hasFlag("-exact"));
+				if (argParser.hasFlag("-explain")) {
+					explainQueries(queryPath, queryHandler, argParser.hasFlag("-exact"));
+				}
 			} catch (IOException e) {
 				System.out.println("Invalid path, not searching.");
 			}
@@ -180,8 +371,16 @@ public class Driver {
 		} catch (IOException e) {
 			System.out.println("IOException trying to write output");
 		}
+
+		if (argParser.hasFlag("-watch") && argParser.hasValue("-text") && threadSafeInvertedIndex != null
+				&& Files.isDirectory(argParser.getPath("-text"))) {
+			watch(argParser, threadSafeInvertedIndex, workQueue, limit, edits, batch);
+		}
 		
 		if (workQueue != null) {
+			if (argParser.hasFlag("-capacity")) {
+				System.out.println(workQueue);
+			}
 			workQueue.shutdown();
 		}
 		
@@ -1,11 +1,19 @@
 package edu.usfca.cs272;
 
 import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
 /**
  * class responsible for finding text files
  * 
@@ -14,20 +22,59 @@ import java.util.stream.Stream;
  */
 public class FileFinder {
 
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
 	/**
 	 * This methods finds all the text files in a directory and its subdirectories
-	 * (case insensitive).
+	 * (case insensitive), including compressed and archived text files.
 	 * 
 	 * @param path the path of the directory
-	 * @return A list of all the .txt and .text files found
+	 * @return A list of all the .txt and .text files and archives found
 	 * @throws IOException throws an IO exception
 	 */
 	public static List<Path> getAllTextFiles(Path path) throws IOException {
-		try (Stream<Path> walk = Files.walk(path)) {
-			return walk.filter(Files::isRegularFile).filter(FileFinder::isTextFile).toList();
+		try (Stream<Path> walk = textFiles(path)) {
+			return walk.toList();
 		}
 	}
 
+	/**
+	 * This method lazily finds the text files in a directory and its
+	 * subdirectories, walking only as far as the stream is read so that the files
+	 * found first can be used while the rest are still being found. The stream
+	 * must be closed.
+	 * 
+	 * @param path the path of the directory
+	 * @return a stream of the .txt and .text files and archives found
+	 * @throws IOException throws an IO exception
+	 * 
+	 * @see #isArchive(Path)
+	 */
+	public static Stream<Path> textFiles(Path path) throws IOException {
+		return Files.walk(path).filter(Files::isRegularFile).filter(FileFinder::isIndexable);
+	}
+
+	/**
+	 * This method finds the text files in a directory and its subdirectories in
+	 * parallel, listing each directory in its own task on the work queue and
+	 * passing each text file or archive to the action as soon as it is found. The
+	 * action is called from the worker threads, so it must be thread safe, and it
+	 * can add more work to the same queue, which it should do for slow work like
+	 * reading an archive so the listing is not held up. Like {@link Files#walk},
+	 * symbolic links to directories are not followed. A directory that cannot be
+	 * listed, or a file the action fails on, is skipped with a warning without
+	 * stopping the rest of the walk. Call {@link WorkQueue#finish()} to wait for
+	 * the walk to finish.
+	 * 
+	 * @param path      the path of the directory
+	 * @param workQueue the work queue to list directories on
+	 * @param action    the action to take on each text file
+	 */
+	public static void findTextFiles(Path path, WorkQueueInterface workQueue, Consumer<Path> action) {
+		workQueue.execute(new Task(path, workQueue, action));
+	}
+
 	/**
 	 * This method determines whether or not a specific path is a text file
 	 * 
@@ -35,8 +82,114 @@ public class FileFinder {
 	 * @return true if a text file, false otherwise.
 	 */
 	public static boolean isTextFile(Path path) {
-		String lower = path.toString().toLowerCase();
+		return isTextFile(path.toString());
+	}
+
+	/**
+	 * This method determines whether or not a file name, such as the name of an
+	 * entry in an archive, is the name of a text file
+	 * 
+	 * @param name the name you are checking
+	 * @return true if the name of a text file, false otherwise.
+	 */
+	public static boolean isTextFile(String name) {
+		String lower = name.toLowerCase();
 		return lower.endsWith(".text") || lower.endsWith(".txt");
 	}
 
+	/**
+	 * This method determines whether or not a specific path is a gzip compressed
+	 * text file or a zip or tar archive, which are indexed without extracting them
+	 * 
+	 * @param path the path you are checking
+	 * @return true if a compressed text file or an archive, false otherwise.
+	 * 
+	 * @see ArchiveReader
+	 */
+	public static boolean isArchive(Path path) {
+		String lower = path.toString().toLowerCase();
+		return lower.endsWith(".txt.gz") || lower.endsWith(".text.gz") || lower.endsWith(".zip")
+				|| lower.endsWith(".tar") || lower.endsWith(".tar.gz") || lower.endsWith(".tgz");
+	}
+
+	/**
+	 * This method determines whether or not a specific path is a text file or an
+	 * archive of text files
+	 * 
+	 * @param path the path you are checking
+	 * @return true if a text file or an archive, false otherwise.
+	 */
+	public static boolean isIndexable(Path path) {
+		return isTextFile(path) || isArchive(path);
+	}
+
+	/**
+	 * task class to list a single directory
+	 * 
+	 * @author ryank
+	 *
+	 */
+	private static class Task implements Runnable {
+		/**
+		 * the directory to list
+		 */
+		private final Path directory;
+
+		/**
+		 * the work queue to list subdirectories on
+		 */
+		private final WorkQueueInterface workQueue;
+
+		/**
+		 * the action to take on each text file
+		 */
+		private final Consumer<Path> action;
+
+		/**
+		 * constructor
+		 * 
+		 * @param directory the directory to list
+		 * @param workQueue the work queue to list subdirectories on
+		 * @param action    the action to take on each text file
+		 */
+		public Task(Path directory, WorkQueueInterface workQueue, Consumer<Path> action) {
+			this.directory = directory;
+			this.workQueue = workQueue;
+			this.action = action;
+		}
+
+		@Override
+		public void run() {
+			try (DirectoryStream<Path> listing = Files.newDirectoryStream(directory)) {
+				for (Path path : listing) {
+					if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+						workQueue.execute(new Task(path, workQueue, action));
+					} else if (Files.isRegularFile(path) && isIndexable(path)) {
+						accept(path);
+					}
+				}
+			}
+			catch (IOException | DirectoryIteratorException e) {
+				System.err.printf("Warning: could not list %s.%n", directory);
+				log.catching(Level.DEBUG, e);
+			}
+		}
+
+		/**
+		 * takes the action on a file found, skipping it with a warning if the action
+		 * fails so the rest of the directory is still listed
+		 * 
+		 * @param path the file found
+		 */
+		private void accept(Path path) {
+			try {
+				action.accept(path);
+			}
+			catch (RuntimeException e) {
+				System.err.printf("Warning: could not index %s.%n", path);
+				log.catching(Level.DEBUG, e);
+			}
+		}
+	}
+
 }
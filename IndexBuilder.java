@@ -1,16 +1,22 @@
 package edu.usfca.cs272;
 
-import static opennlp.tools.stemmer.snowball.SnowballStemmer.ALGORITHM.ENGLISH;
-
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.CharsetDecoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.List;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.function.ObjIntConsumer;
+import java.util.stream.Stream;
 
 import opennlp.tools.stemmer.Stemmer;
-import opennlp.tools.stemmer.snowball.SnowballStemmer;
 
 /**
  * class responsible for filling up an invertedIndex with stemmed words from a
@@ -22,29 +28,317 @@ import opennlp.tools.stemmer.snowball.SnowballStemmer;
 public class IndexBuilder {
 
 	/**
-	 * This method builds the invertedIndex
+	 * the most bytes of a file mapped into memory at once
+	 */
+	private static final int MAX_MAP = 1 << 30;
+
+	/**
+	 * This method builds the invertedIndex. The file is mapped into memory and
+	 * tokenized straight from its bytes, only decoding the lines with non-ASCII
+	 * characters, and produces the same words and positions as reading it line by
+	 * line and parsing each line with {@link WordCleaner#parse(String)}. Archives
+	 * are streamed instead, indexing each text entry as its own location.
 	 * 
 	 * @param path          the path of the file
 	 * @param invertedIndex the invertedIndex object
-	 * @throws IOException throws an IOException
+	 * @throws IOException throws an IOException, including if the file is not
+	 *                     valid UTF-8
+	 * 
+	 * @see FileFinder#isArchive(Path)
 	 */
 	public static void buildInvertedIndex(Path path, InvertedIndex invertedIndex) throws IOException {
-		Stemmer stemmer = new SnowballStemmer(ENGLISH);
-		try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);) {
-			String line = null;
-			int position = 1;
-			String location = path.toString();
-			while ((line = reader.readLine()) != null) {
-				String[] parsedLine = WordCleaner.parse(line);
-				for (String word : parsedLine) {
-					word = stemmer.stem(word).toString();
-					invertedIndex.add(word, location, position);
-					position++;
+		if (FileFinder.isArchive(path)) {
+			ArchiveReader.read(path, (location, bytes) -> buildInvertedIndex(location, bytes, invertedIndex));
+			return;
+		}
+		buildInvertedIndex(path, 0, Long.MAX_VALUE, invertedIndex);
+	}
+
+	/**
+	 * This method builds the invertedIndex from the bytes of a document already
+	 * in memory, such as an entry of an archive
+	 * 
+	 * @param location      the location of the document
+	 * @param bytes         the UTF-8 text of the document
+	 * @param invertedIndex the invertedIndex object
+	 * @throws IOException if the text is not valid UTF-8
+	 * 
+	 * @see ArchiveReader
+	 */
+	public static void buildInvertedIndex(String location, byte[] bytes, InvertedIndex invertedIndex)
+			throws IOException {
+		addStems(ByteBuffer.wrap(bytes), (stem, position) -> invertedIndex.add(stem, location, position));
+	}
+
+	/**
+	 * This method builds the invertedIndex from a range of a file's bytes, which
+	 * should start at the beginning of a line. Positions start at 1 at the start
+	 * of the range, so the words of a range that does not start the file need
+	 * their positions offset by the number of words before it.
+	 * 
+	 * @param path          the path of the file
+	 * @param start         the index of the first byte of the range
+	 * @param end           the index after the last byte of the range
+	 * @param invertedIndex the invertedIndex object
+	 * @throws IOException throws an IOException, including if the range is not
+	 *                     valid UTF-8
+	 * 
+	 * @see #chunks(Path, long)
+	 * @see InvertedIndex#addAll(InvertedIndex, int)
+	 */
+	public static void buildInvertedIndex(Path path, long start, long end, InvertedIndex invertedIndex)
+			throws IOException {
+		String location = path.toString();
+		Ingester ingester = new Ingester((stem, position) -> invertedIndex.add(stem, location, position));
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);) {
+			end = Math.min(end, channel.size());
+			while (start < end) {
+				MappedByteBuffer bytes = channel.map(MapMode.READ_ONLY, start, Math.min(end - start, MAX_MAP));
+				int limit = bytes.limit();
+				if (start + limit < end) {
+					// end the region after its last line break so no line is split between regions
+					int last = lastLineBreak(bytes, limit);
+					if (last >= 0) {
+						limit = last + 1;
+					}
 				}
+				ingester.ingest(bytes, limit);
+				start += limit;
 			}
 		}
 	}
 
+	/**
+	 * This method tokenizes and stems text bytes the same way files are indexed,
+	 * passing each stem and its position (starting at 1) to an action in order
+	 * 
+	 * @param bytes the UTF-8 text to read, from its position to its limit
+	 * @param stems the action to take on each stem and its position
+	 * @throws IOException if the text is not valid UTF-8
+	 */
+	public static void addStems(ByteBuffer bytes, ObjIntConsumer<String> stems) throws IOException {
+		new Ingester(stems).ingest(bytes.slice(), bytes.remaining());
+	}
+
+	/**
+	 * This method splits a file into ranges of about the same size that each end
+	 * right after a line break, so the ranges can be indexed separately with the
+	 * same words as indexing the whole file. A file without enough line breaks
+	 * gets fewer, larger ranges.
+	 * 
+	 * @param path the path of the file
+	 * @param size about how many bytes each range should have
+	 * @return the start of each range followed by the end of the file
+	 * @throws IOException throws an IOException
+	 */
+	public static long[] chunks(Path path, long size) throws IOException {
+		ArrayList<Long> bounds = new ArrayList<>();
+		bounds.add(0L);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);) {
+			long length = channel.size();
+			ByteBuffer bytes = ByteBuffer.allocate(1 << 12);
+			long start = size;
+			while (start < length) {
+				// look for the first line break at or after the target
+				long next = -1;
+				while (next < 0 && start < length) {
+					bytes.clear();
+					int read = channel.read(bytes, start);
+					if (read <= 0) {
+						break;
+					}
+					for (int i = 0; i < read && next < 0; i++) {
+						byte b = bytes.get(i);
+						if (b == '\n' || b == '\r') {
+							next = start + i + 1;
+						}
+					}
+					start += read;
+				}
+				if (next < 0 || next >= length) {
+					break;
+				}
+				bounds.add(next);
+				start = next + size;
+			}
+			bounds.add(length);
+		}
+
+		long[] chunks = new long[bounds.size()];
+		for (int i = 0; i < chunks.length; i++) {
+			chunks[i] = bounds.get(i);
+		}
+		return chunks;
+	}
+
+	/**
+	 * Finds the last line break in the bytes before a limit
+	 * 
+	 * @param bytes the bytes to search
+	 * @param limit the index after the last byte to search
+	 * @return the index of the last line break, or -1 if there is none
+	 */
+	private static int lastLineBreak(ByteBuffer bytes, int limit) {
+		int last = limit - 1;
+		while (last >= 0 && bytes.get(last) != '\n' && bytes.get(last) != '\r') {
+			last--;
+		}
+		return last;
+	}
+
+	/**
+	 * Class responsible for stemming the words of a file's bytes one line at a
+	 * time. In ASCII lines, letters are lowercased into a
+	 * reused buffer as they are read, whitespace ends a word like
+	 * {@link WordCleaner#SPLIT_REGEX}, and any other character is skipped without
+	 * ending it like {@link WordCleaner#CLEAN_REGEX}. Lines with a non-ASCII byte
+	 * are decoded and parsed like any other text instead.
+	 * 
+	 * @author ryank
+	 *
+	 */
+	private static class Ingester {
+
+		/**
+		 * the action to take on each stem and its position
+		 */
+		private final ObjIntConsumer<String> stems;
+
+		/**
+		 * the stemmer to use
+		 */
+		private final Stemmer stemmer;
+
+		/**
+		 * strict decoder for the runs with non-ASCII bytes
+		 */
+		private final CharsetDecoder decoder;
+
+		/**
+		 * whether ASCII letters can be lowercased by offset in the default locale
+		 */
+		private final boolean ascii;
+
+		/**
+		 * the lowercased letters of the current word
+		 */
+		private char[] buffer;
+
+		/**
+		 * the position of the next word
+		 */
+		private int position;
+
+		/**
+		 * Ingester constructor
+		 * 
+		 * @param stems the action to take on each stem and its position
+		 */
+		private Ingester(ObjIntConsumer<String> stems) {
+			this.stems = stems;
+			this.stemmer = WordCleaner.STEMMER;
+			this.decoder = StandardCharsets.UTF_8.newDecoder();
+			this.ascii = WordCleaner.lowercasesAscii();
+			this.buffer = new char[64];
+			this.position = 1;
+		}
+
+		/**
+		 * Adds the words of the lines in the bytes before an end, which must be at
+		 * the end of the bytes or right after a line break
+		 * 
+		 * @param bytes the bytes to read
+		 * @param end   the index after the last byte to read
+		 * @throws IOException if a line is not valid UTF-8
+		 */
+		private void ingest(ByteBuffer bytes, int end) throws IOException {
+			int start = 0;
+			while (start < end) {
+				int i = start;
+				boolean plain = ascii;
+				byte b = 0;
+				while (i < end && (b = bytes.get(i)) != '\n' && b != '\r') {
+					if (b < 0) {
+						plain = false;
+					}
+					i++;
+				}
+				if (plain) {
+					tokenize(bytes, start, i);
+				}
+				else {
+					decode(bytes, start, i);
+				}
+				start = i + 1;
+			}
+		}
+
+		/**
+		 * Adds the words of an ASCII line
+		 * 
+		 * @param bytes the bytes to read
+		 * @param start the index of the first byte of the line
+		 * @param end   the index after the last byte of the line
+		 */
+		private void tokenize(ByteBuffer bytes, int start, int end) {
+			int length = 0;
+			for (int i = start; i < end; i++) {
+				byte b = bytes.get(i);
+				if (b >= 'A' && b <= 'Z') {
+					b += 'a' - 'A';
+				}
+				if (b >= 'a' && b <= 'z') {
+					if (length == buffer.length) {
+						buffer = Arrays.copyOf(buffer, length * 2);
+					}
+					buffer[length++] = (char) b;
+				}
+				else if (isSpace(b) && length > 0) {
+					add(new String(buffer, 0, length));
+					length = 0;
+				}
+			}
+			if (length > 0) {
+				add(new String(buffer, 0, length));
+			}
+		}
+
+		/**
+		 * Decodes a line with non-ASCII bytes and adds its words
+		 * 
+		 * @param bytes the bytes to read
+		 * @param start the index of the first byte of the line
+		 * @param end   the index after the last byte of the line
+		 * @throws IOException if the line is not valid UTF-8
+		 */
+		private void decode(ByteBuffer bytes, int start, int end) throws IOException {
+			String text = decoder.decode(bytes.slice(start, end - start)).toString();
+			for (String word : WordCleaner.parse(text)) {
+				add(word);
+			}
+		}
+
+		/**
+		 * Stems a word and passes it on at the next position
+		 * 
+		 * @param word the cleaned word
+		 */
+		private void add(String word) {
+			stems.accept(stemmer.stem(word).toString(), position);
+			position++;
+		}
+
+		/**
+		 * Determines whether a byte is ASCII whitespace
+		 * 
+		 * @param b the byte to check
+		 * @return true if the byte is a space, tab, or line break
+		 */
+		private static boolean isSpace(byte b) {
+			return b == ' ' || (b >= '\t' && b <= '\r');
+		}
+	}
+
 	/**
 	 * This method builds the inverted index
 	 * 
@@ -53,13 +347,52 @@ public class IndexBuilder {
 	 * @throws IOException this method throws an IO exception
 	 */
 	public static void build(Path path, InvertedIndex invertedIndex) throws IOException {
+		build(path, invertedIndex, null);
+	}
+
+	/**
+	 * This method builds the inverted index, only indexing the first of any files
+	 * with the same contents and recording the rest as its aliases. The score
+	 * upper bounds are calculated once every file has been added.
+	 * 
+	 * @param path          the path
+	 * @param invertedIndex the inverted index you are creating
+	 * @param deduplicator  the files seen so far, or null to index every file
+	 * @throws IOException this method throws an IO exception
+	 */
+	public static void build(Path path, InvertedIndex invertedIndex, Deduplicator deduplicator) throws IOException {
 		if (Files.isDirectory(path)) {
-			List<Path> allTextFiles = FileFinder.getAllTextFiles(path);
-			for (Path file : allTextFiles) {
-				buildInvertedIndex(file, invertedIndex);
+			try (Stream<Path> files = FileFinder.textFiles(path)) {
+				Iterator<Path> iterator = files.iterator();
+				while (iterator.hasNext()) {
+					buildInvertedIndex(iterator.next(), invertedIndex, deduplicator);
+				}
 			}
 		} else {
-			buildInvertedIndex(path, invertedIndex);
+			buildInvertedIndex(path, invertedIndex, deduplicator);
+		}
+		invertedIndex.updateMaxScores();
+	}
+
+	/**
+	 * This method builds the invertedIndex from a file unless it has the same
+	 * contents as a file already seen, in which case it becomes an alias of that
+	 * file. Archives are always indexed.
+	 * 
+	 * @param path          the path of the file
+	 * @param invertedIndex the invertedIndex object
+	 * @param deduplicator  the files seen so far, or null to index every file
+	 * @throws IOException throws an IOException
+	 */
+	public static void buildInvertedIndex(Path path, InvertedIndex invertedIndex, Deduplicator deduplicator)
+			throws IOException {
+		if (deduplicator != null && !FileFinder.isArchive(path)) {
+			Path canonical = deduplicator.canonical(path);
+			if (canonical != null) {
+				invertedIndex.addAlias(canonical.toString(), path.toString());
+				return;
+			}
 		}
+		buildInvertedIndex(path, invertedIndex);
 	}
 }
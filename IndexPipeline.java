@@ -0,0 +1,576 @@
+package edu.usfca.cs272;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Class responsible for indexing text files through a pipeline of stages
+ * connected by bounded queues:
+ *
+ * <ol>
+ * <li>discovery walks the directory for text files on the calling thread</li>
+ * <li>read loads the bytes of each file</li>
+ * <li>tokenize cleans and stems the bytes into words</li>
+ * <li>index builds a local inverted index for each file</li>
+ * <li>merge adds the local inverted indexes to the shared one</li>
+ * </ol>
+ *
+ * Each stage has its own threads, so reading files overlaps with stemming and
+ * indexing them. A full queue blocks the stage feeding it until the next stage
+ * catches up, so at most a queue's capacity of files waits between any two
+ * stages however large the corpus is, unlike a work queue that lists every file
+ * up front.
+ *
+ * @author ryank
+ *
+ */
+public class IndexPipeline {
+
+	/**
+	 * the largest file the read stage loads into memory, larger files are mapped
+	 * and indexed by the tokenize stage instead
+	 */
+	public static final int MAX_READ = 16 << 20;
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
+	/**
+	 * marks the end of the documents in a queue
+	 */
+	private static final Document END = new Document(null);
+
+	/**
+	 * the invertedIndex to build
+	 */
+	private final ThreadSafeInvertedIndex invertedIndex;
+
+	/**
+	 * number of text files discovered
+	 */
+	private final LongAdder discovered;
+
+	/**
+	 * the stages after discovery, in order
+	 */
+	private final List<Stage> stages;
+
+	/**
+	 * the {@link System#nanoTime()} the last build started
+	 */
+	private volatile long started;
+
+	/**
+	 * the {@link System#nanoTime()} the last build finished, or 0 while building
+	 */
+	private volatile long finished;
+
+	/**
+	 * IndexPipeline constructor
+	 *
+	 * @param invertedIndex the invertedIndex to build
+	 * @param readers       number of threads reading files
+	 * @param tokenizers    number of threads cleaning and stemming words
+	 * @param indexers      number of threads building local inverted indexes
+	 * @param capacity      the most files waiting between two stages
+	 */
+	public IndexPipeline(ThreadSafeInvertedIndex invertedIndex, int readers, int tokenizers, int indexers,
+			int capacity) {
+		this.invertedIndex = invertedIndex;
+		this.discovered = new LongAdder();
+		this.started = 0;
+		this.finished = 0;
+
+		Stage merge = new Stage("merge", 1, capacity, null, this::merge);
+		Stage index = new Stage("index", indexers, capacity, merge, this::index);
+		Stage tokenize = new Stage("tokenize", tokenizers, capacity, index, this::tokenize);
+		Stage read = new Stage("read", readers, capacity, tokenize, this::read);
+		this.stages = List.of(read, tokenize, index, merge);
+	}
+
+	/**
+	 * Indexes a text file, or every text file in a directory, returning once all
+	 * of them have been merged into the inverted index. Files that cannot be read
+	 * are skipped and counted as failures of the stage that read them.
+	 *
+	 * @param path the file or directory to index
+	 * @throws IOException if the directory cannot be walked
+	 */
+	public void build(Path path) throws IOException {
+		started = System.nanoTime();
+		finished = 0;
+		discovered.reset();
+		for (Stage stage : stages) {
+			stage.start();
+		}
+
+		Stage first = stages.get(0);
+		try {
+			if (Files.isDirectory(path)) {
+				try (Stream<Path> walk = FileFinder.textFiles(path)) {
+					Iterator<Path> files = walk.iterator();
+					while (files.hasNext()) {
+						first.put(new Document(files.next()));
+						discovered.increment();
+					}
+				}
+			} else {
+				first.put(new Document(path));
+				discovered.increment();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			first.finish();
+			try {
+				for (Stage stage : stages) {
+					stage.join();
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			finished = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Returns the stages after discovery, in order
+	 *
+	 * @return an unmodifiable list of the stages
+	 */
+	public List<Stage> getStages() {
+		return stages;
+	}
+
+	/**
+	 * Returns the number of text files discovered by the last build
+	 *
+	 * @return the number of text files discovered
+	 */
+	public long getDiscovered() {
+		return discovered.sum();
+	}
+
+	/**
+	 * Returns how long the last build has taken so far, or took
+	 *
+	 * @return the seconds since the last build started, or 0 if none has
+	 */
+	private double elapsed() {
+		if (started == 0) {
+			return 0;
+		}
+		return ((finished == 0 ? System.nanoTime() : finished) - started) / 1e9;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append(String.format("discovery: %d files in %.2f s", getDiscovered(), elapsed()));
+		for (Stage stage : stages) {
+			builder.append("\n").append(stage);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * The read stage, which loads the bytes of files small enough to hold in
+	 * memory. Archives are left for the tokenize stage to stream.
+	 *
+	 * @param document the document to read
+	 * @throws IOException if the file cannot be read
+	 */
+	private void read(Document document) throws IOException {
+		if (!FileFinder.isArchive(document.path) && Files.size(document.path) <= MAX_READ) {
+			document.bytes = Files.readAllBytes(document.path);
+		}
+	}
+
+	/**
+	 * The tokenize stage, which cleans and stems the bytes of a document, or
+	 * indexes a file too large to read or an archive straight from the file
+	 *
+	 * @param document the document to tokenize
+	 * @throws IOException if the file cannot be read or is not valid UTF-8
+	 */
+	private void tokenize(Document document) throws IOException {
+		if (document.bytes == null) {
+			document.local = new InvertedIndex();
+			IndexBuilder.buildInvertedIndex(document.path, document.local);
+			return;
+		}
+		ArrayList<String> stems = new ArrayList<>();
+		IndexBuilder.addStems(ByteBuffer.wrap(document.bytes), (stem, position) -> stems.add(stem));
+		document.bytes = null;
+		document.stems = stems;
+	}
+
+	/**
+	 * The index stage, which builds the local inverted index of a document
+	 *
+	 * @param document the document to index
+	 */
+	private void index(Document document) {
+		if (document.local == null) {
+			document.local = new InvertedIndex();
+			document.local.addAll(document.stems, document.path.toString());
+			document.stems = null;
+		}
+	}
+
+	/**
+	 * The merge stage, which adds the local inverted index of a document to the
+	 * shared one
+	 *
+	 * @param document the document to merge
+	 */
+	private void merge(Document document) {
+		invertedIndex.addAll(document.local);
+		document.local = null;
+	}
+
+	/**
+	 * a text file as it moves through the stages, where each stage fills in what
+	 * the next one needs and lets go of what it used
+	 *
+	 * @author ryank
+	 *
+	 */
+	private static class Document {
+		/**
+		 * path of the file
+		 */
+		private final Path path;
+
+		/**
+		 * the bytes of the file, once read
+		 */
+		private byte[] bytes;
+
+		/**
+		 * the stems of the file in order, once tokenized
+		 */
+		private ArrayList<String> stems;
+
+		/**
+		 * the local inverted index of the file, once indexed
+		 */
+		private InvertedIndex local;
+
+		/**
+		 * constructor
+		 *
+		 * @param path path of the file
+		 */
+		public Document(Path path) {
+			this.path = path;
+		}
+	}
+
+	/**
+	 * the work one stage does to a document
+	 *
+	 * @author ryank
+	 *
+	 */
+	@FunctionalInterface
+	private interface Step {
+		/**
+		 * does the work of a stage
+		 *
+		 * @param document the document to work on
+		 * @throws IOException if the file cannot be read
+		 */
+		void run(Document document) throws IOException;
+	}
+
+	/**
+	 * Class responsible for one stage of the pipeline, with its own threads taking
+	 * documents from its bounded queue and passing them on to the next stage
+	 *
+	 * @author ryank
+	 *
+	 */
+	public class Stage {
+		/**
+		 * the name of the stage
+		 */
+		private final String name;
+
+		/**
+		 * number of threads working on the stage
+		 */
+		private final int threads;
+
+		/**
+		 * the documents waiting for the stage
+		 */
+		private final BlockingQueue<Document> queue;
+
+		/**
+		 * the stage documents go to next, or null for the last stage
+		 */
+		private final Stage next;
+
+		/**
+		 * the work the stage does to each document
+		 */
+		private final Step step;
+
+		/**
+		 * the threads working on the stage in the current build
+		 */
+		private final List<Thread> workers;
+
+		/**
+		 * number of threads still working on the stage in the current build
+		 */
+		private final AtomicInteger running;
+
+		/**
+		 * number of documents the stage finished
+		 */
+		private final LongAdder processed;
+
+		/**
+		 * number of documents the stage failed on and dropped
+		 */
+		private final LongAdder failed;
+
+		/**
+		 * total time the threads spent working, not counting waiting on queues
+		 */
+		private final LongAdder busy;
+
+		/**
+		 * the most documents that have waited for the stage at once
+		 */
+		private final AtomicInteger maxDepth;
+
+		/**
+		 * Stage constructor
+		 *
+		 * @param name     the name of the stage
+		 * @param threads  number of threads working on the stage
+		 * @param capacity the most documents waiting for the stage
+		 * @param next     the stage documents go to next, or null for the last stage
+		 * @param step     the work the stage does to each document
+		 */
+		private Stage(String name, int threads, int capacity, Stage next, Step step) {
+			this.name = name;
+			this.threads = Math.max(1, threads);
+			this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+			this.next = next;
+			this.step = step;
+			this.workers = new ArrayList<>();
+			this.running = new AtomicInteger();
+			this.processed = new LongAdder();
+			this.failed = new LongAdder();
+			this.busy = new LongAdder();
+			this.maxDepth = new AtomicInteger();
+		}
+
+		/**
+		 * starts the threads of the stage
+		 */
+		private void start() {
+			workers.clear();
+			running.set(threads);
+			processed.reset();
+			failed.reset();
+			busy.reset();
+			maxDepth.set(0);
+			for (int i = 0; i < threads; i++) {
+				Thread worker = new Thread(this::work, "Pipeline-" + name + "-" + i);
+				workers.add(worker);
+				worker.start();
+			}
+		}
+
+		/**
+		 * waits for the threads of the stage to finish
+		 *
+		 * @throws InterruptedException if interrupted while waiting
+		 */
+		private void join() throws InterruptedException {
+			for (Thread worker : workers) {
+				worker.join();
+			}
+		}
+
+		/**
+		 * adds a document to the queue, waiting while it is full
+		 *
+		 * @param document the document to add
+		 * @throws InterruptedException if interrupted while waiting
+		 */
+		private void put(Document document) throws InterruptedException {
+			queue.put(document);
+			maxDepth.accumulateAndGet(queue.size(), Math::max);
+		}
+
+		/**
+		 * tells every thread of the stage there are no more documents, once the ones
+		 * already queued are done
+		 */
+		private void finish() {
+			boolean interrupted = false;
+			for (int i = 0; i < threads; i++) {
+				while (true) {
+					try {
+						queue.put(END);
+						break;
+					}
+					catch (InterruptedException e) {
+						// the end must be queued or the stage never stops
+						interrupted = true;
+					}
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * takes documents from the queue until the end, doing the stage's work on
+		 * each and passing it on, and tells the next stage to finish once every
+		 * thread of this stage has
+		 */
+		private void work() {
+			try {
+				while (true) {
+					Document document = queue.take();
+					if (document == END) {
+						break;
+					}
+					long start = System.nanoTime();
+					try {
+						step.run(document);
+					}
+					catch (IOException | RuntimeException e) {
+						failed.increment();
+						System.err.printf("Warning: %s stage unable to index %s.%n", name, document.path);
+						log.catching(Level.DEBUG, e);
+						continue;
+					}
+					finally {
+						busy.add(System.nanoTime() - start);
+					}
+					processed.increment();
+					if (next != null) {
+						next.put(document);
+					}
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			finally {
+				if (running.decrementAndGet() == 0 && next != null) {
+					next.finish();
+				}
+			}
+		}
+
+		/**
+		 * Returns the name of the stage
+		 *
+		 * @return the name of the stage
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Returns the number of threads working on the stage
+		 *
+		 * @return the number of threads
+		 */
+		public int getThreads() {
+			return threads;
+		}
+
+		/**
+		 * Returns the number of documents the stage finished
+		 *
+		 * @return the number of documents
+		 */
+		public long getProcessed() {
+			return processed.sum();
+		}
+
+		/**
+		 * Returns the number of documents the stage failed on and dropped
+		 *
+		 * @return the number of documents
+		 */
+		public long getFailed() {
+			return failed.sum();
+		}
+
+		/**
+		 * Returns how many documents per second the stage finished over the last
+		 * build
+		 *
+		 * @return the throughput of the stage
+		 */
+		public double getThroughput() {
+			double seconds = elapsed();
+			return seconds == 0 ? 0 : processed.sum() / seconds;
+		}
+
+		/**
+		 * Returns the average time one thread spent working on each document, which
+		 * shows the slowest stage even when the queues hide it
+		 *
+		 * @return the average milliseconds per document
+		 */
+		public double getMillisPerDocument() {
+			long count = processed.sum() + failed.sum();
+			return count == 0 ? 0 : busy.sum() / 1e6 / count;
+		}
+
+		/**
+		 * Returns the number of documents waiting for the stage
+		 *
+		 * @return the depth of the queue
+		 */
+		public int getQueueDepth() {
+			return queue.size();
+		}
+
+		/**
+		 * Returns the most documents that have waited for the stage at once
+		 *
+		 * @return the largest depth of the queue
+		 */
+		public int getMaxQueueDepth() {
+			return maxDepth.get();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d threads, %d files (%d failed), %.1f files/s, %.2f ms/file, queue %d (max %d)",
+					name, threads, getProcessed(), getFailed(), getThroughput(), getMillisPerDocument(), getQueueDepth(),
+					getMaxQueueDepth());
+		}
+	}
+}
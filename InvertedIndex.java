@@ -3,12 +3,20 @@ package edu.usfca.cs272;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
 
 /**
  * Class responsible for creating invertedIndex data structure
@@ -28,12 +36,256 @@ public class InvertedIndex {
 	 */
 	private final TreeMap<String, Integer> wordCounts;
 
+	/**
+	 * locations with the same contents as another location, by the canonical
+	 * location whose postings they share
+	 */
+	private final TreeMap<String, TreeSet<String>> aliases;
+
+	/**
+	 * the canonical location of each alias
+	 */
+	private final TreeMap<String, String> canonicals;
+
+	/**
+	 * upper bound on the score any single location can get from each word, used
+	 * to skip locations during top-k search
+	 */
+	private final HashMap<String, Double> maxScores;
+
+	/**
+	 * whether the score upper bounds cover every location, which stops being true
+	 * once words are added one at a time until {@link #updateMaxScores()}
+	 */
+	private boolean maxScoresValid;
+
+	/**
+	 * number of positions of each word across all locations
+	 */
+	private final HashMap<String, Integer> positionCounts;
+
+	/**
+	 * relative slack when comparing score upper bounds against the top-k
+	 * threshold, so rounding never prunes a location that ties the threshold
+	 */
+	private static final double EPSILON = 1e-9;
+
+	/**
+	 * how much each edit of a fuzzy match lowers the weight of its matches, which
+	 * count 1 / (1 + PENALTY * edits) toward the score
+	 */
+	private static final double PENALTY = 1.0;
+
+	/**
+	 * whether the searches started on each thread have been cancelled, or null
+	 * for searches that cannot be
+	 */
+	private static final ThreadLocal<BooleanSupplier> cancellation = new ThreadLocal<>();
+
+	/**
+	 * number of locations a search must visit before its words are split into
+	 * ranges searched in parallel, or 0 to always search on the calling thread
+	 */
+	private final int parallelThreshold;
+
+	/**
+	 * how many milliseconds each search may take before it stops and returns the
+	 * best results found so far, or 0 to never stop early
+	 */
+	private final long timeout;
+
+	/**
+	 * rotations of every word for wildcard search, or null until the first
+	 * wildcard search builds it
+	 */
+	private PermutermIndex permuterm;
+
 	/**
 	 * InvertedIndex constructor
 	 */
 	public InvertedIndex() {
+		this(0);
+	}
+
+	/**
+	 * InvertedIndex constructor that searches broad queries in parallel
+	 * 
+	 * @param parallelThreshold number of locations a search must visit before its
+	 *                          words are split into ranges searched in parallel,
+	 *                          or 0 to always search on the calling thread
+	 */
+	public InvertedIndex(int parallelThreshold) {
+		this(parallelThreshold, 0);
+	}
+
+	/**
+	 * InvertedIndex constructor that also gives every search a time budget
+	 * 
+	 * @param parallelThreshold number of locations a search must visit before its
+	 *                          words are split into ranges searched in parallel,
+	 *                          or 0 to always search on the calling thread
+	 * @param timeout           how many milliseconds each search may take before
+	 *                          it stops and returns the best results found so far,
+	 *                          or 0 to never stop early
+	 */
+	public InvertedIndex(int parallelThreshold, long timeout) {
 		invertedIndex = new TreeMap<>();
 		wordCounts = new TreeMap<>();
+		aliases = new TreeMap<>();
+		canonicals = new TreeMap<>();
+		maxScores = new HashMap<>();
+		maxScoresValid = true;
+		positionCounts = new HashMap<>();
+		this.parallelThreshold = parallelThreshold;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Class responsible for the sorted results of a search, which also records
+	 * whether the search ran out of time and only holds the best results found
+	 * before it stopped
+	 * 
+	 * @author ryank
+	 *
+	 */
+	public static class SearchResultList extends ArrayList<SearchResult> {
+
+		/**
+		 * serial version for the list
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * whether or not the search ran out of time
+		 */
+		private boolean timedOut;
+
+		/**
+		 * SearchResultList constructor
+		 */
+		public SearchResultList() {
+			super();
+			this.timedOut = false;
+		}
+
+		/**
+		 * SearchResultList copy constructor
+		 * 
+		 * @param other the search results to copy, along with whether they ran out
+		 *              of time
+		 */
+		public SearchResultList(SearchResultList other) {
+			super(other);
+			this.timedOut = other.timedOut;
+		}
+
+		/**
+		 * Whether or not the search ran out of time, in which case the words it did
+		 * not get to are missing from the results
+		 * 
+		 * @return true if the search ran out of time
+		 */
+		public boolean isTimedOut() {
+			return timedOut;
+		}
+	}
+
+	/**
+	 * Class responsible for the time budget of a single search. Searches check it
+	 * between the words they expand and the words or locations they visit, and
+	 * stop early once it runs out. Expanding the query words may only use the
+	 * first half of the budget, so that a query matching too many words still
+	 * has time to score the ones it found.
+	 * 
+	 * @author ryank
+	 *
+	 */
+	private static class Budget {
+
+		/**
+		 * how many locations a search visits between checks of the clock, a power
+		 * of two
+		 */
+		private static final int INTERVAL = 1024;
+
+		/**
+		 * the {@link System#nanoTime()} the search should stop by
+		 */
+		private final long deadline;
+
+		/**
+		 * the {@link System#nanoTime()} the current phase of the search should stop
+		 * by, volatile since the ranges of a parallel search share the budget
+		 */
+		private volatile long phaseDeadline;
+
+		/**
+		 * whether or not the search has a deadline
+		 */
+		private final boolean bounded;
+
+		/**
+		 * whether or not any phase of the search ran out of time
+		 */
+		private volatile boolean timedOut;
+
+		/**
+		 * whether the search has been cancelled, or null if it cannot be
+		 */
+		private final BooleanSupplier cancelled;
+
+		/**
+		 * Budget constructor
+		 * 
+		 * @param timeout how many milliseconds the search may take, or 0 for no limit
+		 */
+		private Budget(long timeout) {
+			long start = System.nanoTime();
+			long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+			this.bounded = timeout > 0;
+			this.deadline = start + nanos;
+			this.phaseDeadline = start + nanos / 2;
+			this.timedOut = false;
+			this.cancelled = cancellation.get();
+		}
+
+		/**
+		 * Moves on from expanding the query words to scoring them, which may use the
+		 * rest of the budget
+		 */
+		private void evaluate() {
+			phaseDeadline = deadline;
+		}
+
+		/**
+		 * Whether or not the current phase of the search should stop because it ran
+		 * out of time
+		 * 
+		 * @return true if the current phase ran out of time
+		 * @throws CancellationException if the search has been cancelled
+		 */
+		private boolean expired() {
+			if (cancelled != null && cancelled.getAsBoolean()) {
+				throw new CancellationException("Search cancelled");
+			}
+			if (bounded && System.nanoTime() - phaseDeadline >= 0) {
+				timedOut = true;
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Whether or not a search walking the locations of a word should stop,
+		 * only checking the clock once every {@link #INTERVAL} locations
+		 * 
+		 * @param visited how many locations the search has visited
+		 * @return true if the current phase ran out of time
+		 * @throws CancellationException if the search has been cancelled
+		 */
+		private boolean expired(int visited) {
+			return (visited & (INTERVAL - 1)) == 0 && expired();
+		}
 	}
 
 	/**
@@ -59,6 +311,12 @@ public class InvertedIndex {
 		 */
 		private int count;
 
+		/**
+		 * count of matches weighted by how closely they matched, which only differs
+		 * from the count for fuzzy matches
+		 */
+		private double weighted;
+
 		/**
 		 * Search Result constructor
 		 * 
@@ -71,14 +329,39 @@ public class InvertedIndex {
 		}
 
 		/**
-		 * Update method to update the count and score of a search result with the same
-		 * location
+		 * Search Result constructor for an alias of a location, with the same count
+		 * and score as the location's result
+		 * 
+		 * @param location the alias
+		 * @param result   the search result of the canonical location
+		 */
+		private SearchResult(String location, SearchResult result) {
+			this.score = result.score;
+			this.location = location;
+			this.count = result.count;
+			this.weighted = result.weighted;
+		}
+
+		/**
+		 * Adds matches to the count of this search result and recalculates the score
+		 * 
+		 * @param matches the number of matches to add
+		 */
+		private void add(int matches) {
+			add(matches, matches);
+		}
+
+		/**
+		 * Adds matches with a weighted count to this search result and recalculates
+		 * the score
 		 * 
-		 * @param word a specific word of the query
+		 * @param matches  the number of matches to add
+		 * @param weighted the weighted number of matches to add
 		 */
-		private void update(String word) {
-			this.count += invertedIndex.get(word).get(this.location).size();
-			this.score = this.count / (double) getFilesTotalWords(this.location);
+		private void add(int matches, double weighted) {
+			this.count += matches;
+			this.weighted += weighted;
+			this.score = this.weighted / getFilesTotalWords(this.location);
 		}
 
 		/**
@@ -140,29 +423,33 @@ public class InvertedIndex {
 	 * @param exact   whether or not the search is exact
 	 * @return a list of search results
 	 */
-	public List<SearchResult> search(Set<String> queries, boolean exact) {
+	public SearchResultList search(Set<String> queries, boolean exact) {
 		return exact ? exactSearch(queries) : partialSearch(queries);
 	}
 
+	/**
+	 * This method conducts search on a set of queries, only returning the best
+	 * results if limit is greater than 0
+	 * 
+	 * @param queries set of queries
+	 * @param exact   whether or not the search is exact
+	 * @param limit   the maximum number of results to return, or 0 for all of them
+	 * @return a list of search results
+	 * 
+	 * @see #topSearch(Set, boolean, int)
+	 */
+	public SearchResultList search(Set<String> queries, boolean exact, int limit) {
+		return limit > 0 ? topSearch(queries, exact, limit) : search(queries, exact);
+	}
+
 	/**
 	 * This method performs exact search on the inverted index data structure
 	 * 
 	 * @param query the set of query words to perform partial search with
 	 * @return a list of sorted SearchResults objects
 	 */
-
-	public List<SearchResult> exactSearch(Set<String> query) {
-		List<SearchResult> searchResultList = new ArrayList<SearchResult>();
-		HashMap<String, SearchResult> matches = new HashMap<>(); // path and search result
-
-		for (String queryWord : query) {
-			if (invertedIndex.containsKey(queryWord)) {
-				searchHelper(queryWord, searchResultList, matches);
-			}
-		}
-
-		Collections.sort(searchResultList);
-		return searchResultList;
+	public SearchResultList exactSearch(Set<String> query) {
+		return new QueryPlan(query, true, 0).execute();
 	}
 
 	/**
@@ -171,133 +458,1401 @@ public class InvertedIndex {
 	 * @param query the set of query words to perform partial search with
 	 * @return a list of sorted SearchResults objects
 	 */
-	public List<SearchResult> partialSearch(Set<String> query) {
-		List<SearchResult> searchResultList = new ArrayList<SearchResult>();
-		HashMap<String, SearchResult> matches = new HashMap<>(); // path and search result
-		for (String queryWord : query) {
-			for (var mapping : invertedIndex.tailMap(queryWord).entrySet()) {
-				String invertedIndexWord = mapping.getKey();
-				if (invertedIndexWord.startsWith(queryWord)) {
-					searchHelper(invertedIndexWord, searchResultList, matches);
-				} else {
-					break;
-				}
-			}
-		}
-		Collections.sort(searchResultList);
-		return searchResultList;
+	public SearchResultList partialSearch(Set<String> query) {
+		return new QueryPlan(query, false, 0).execute();
 	}
 
 	/**
-	 * This is a private method to perform the search operation
+	 * This method performs a search that only returns the best results. Returns
+	 * the same results as the first limit results of a full search.
 	 * 
-	 * @param queryWord        the word to update
-	 * @param searchResultList the list to update
-	 * @param matches          the hashmap storing the matches
+	 * @param query the set of query words to search with
+	 * @param exact whether or not the search is exact
+	 * @param limit the maximum number of results to return
+	 * @return a list of at most limit sorted SearchResults objects
+	 * 
+	 * @see QueryPlan
 	 */
-	private void searchHelper(String queryWord, List<SearchResult> searchResultList,
-			HashMap<String, SearchResult> matches) {
-		for (String location : invertedIndex.get(queryWord).keySet()) {
-			if (!matches.containsKey(location)) {
-				SearchResult result = new SearchResult(location);
-				searchResultList.add(result);
-				matches.put(location, result);
-			}
-			matches.get(location).update(queryWord);
-		}
+	public SearchResultList topSearch(Set<String> query, boolean exact, int limit) {
+		return new QueryPlan(query, exact, limit).execute();
 	}
 
 	/**
-	 * this method adds the word to the invertedIndex data structure at its
-	 * specified position
+	 * This method performs fuzzy search on the inverted index data structure,
+	 * matching every word within a maximum edit distance of a query word. Matches
+	 * count less toward the score the more edits they are from the query word.
 	 * 
-	 * @param path     the path of the file
-	 * @param word     the word to add
-	 * @param position the position of the word
+	 * @param query the set of query words to search with
+	 * @param edits the maximum edit distance of a match, either 1 or 2
+	 * @param limit the maximum number of results to return, or 0 for all of them
+	 * @return a list of sorted SearchResults objects
+	 * @throws IllegalArgumentException if the edit distance is not 1 or 2
+	 * 
+	 * @see LevenshteinAutomaton
 	 */
-	public void add(String word, String path, int position) {
-		this.invertedIndex.putIfAbsent(word, new TreeMap<String, TreeSet<Integer>>());
-		this.invertedIndex.get(word).putIfAbsent(path, new TreeSet<Integer>());
-		boolean modified = this.invertedIndex.get(word).get(path).add(position);
+	public SearchResultList fuzzySearch(Set<String> query, int edits, int limit) {
+		return new QueryPlan(query, edits, limit).execute();
+	}
 
-		if (modified) {
-			this.wordCounts.putIfAbsent(path, 0);
-			this.wordCounts.put(path, this.wordCounts.get(path) + 1);
-		}
+	/**
+	 * This method performs wildcard search on the inverted index data structure,
+	 * where each {@code *} of a pattern matches any characters
+	 * 
+	 * @param patterns the set of wildcard patterns to search with
+	 * @param limit    the maximum number of results to return, or 0 for all of them
+	 * @return a list of sorted SearchResults objects
+	 * 
+	 * @see PermutermIndex
+	 */
+	public SearchResultList wildcardSearch(Set<String> patterns, int limit) {
+		return new QueryPlan(patterns, limit).execute();
 	}
 
 	/**
-	 * ToString implementation of the inverted index data structure
+	 * This method searches a block of queries together. The queries are grouped by
+	 * the words they match, so the locations of each word are walked once and
+	 * added to the results of every query matching it, instead of once per query.
+	 * Returns the same results as searching each query on its own.
+	 * 
+	 * @param queries the sets of query words to search with
+	 * @param exact   whether or not the searches are exact
+	 * @param limit   the maximum number of results to return per query, or 0 for
+	 *                all of them
+	 * @return a list of sorted SearchResults objects for each query, in order
+	 *         (the block shares the time budget of all of its queries, and if it
+	 *         runs out only the lists of queries with words left to expand or
+	 *         walk are marked as timed out)
 	 */
-	@Override
-	public String toString() {
-		return "InvertedIndex: " + invertedIndex + "";
+	public List<SearchResultList> batchSearch(List<? extends Set<String>> queries, boolean exact, int limit) {
+		Budget budget = new Budget(timeout * queries.size());
+		boolean[] cutShort = new boolean[queries.size()];
+		List<TreeMap<String, Term>> matched = new ArrayList<>();
+		TreeMap<String, List<Integer>> queriesByWord = new TreeMap<>();
+		for (int i = 0; i < queries.size(); i++) {
+			matched.add(expand(queries.get(i), exact, budget));
+			cutShort[i] = budget.timedOut; // every expansion after the first to run out stops early too
+			for (String word : matched.get(i).keySet()) {
+				queriesByWord.computeIfAbsent(word, w -> new ArrayList<>()).add(i);
+			}
+		}
+		budget.evaluate();
+
+		List<SearchResultList> searchResultLists = new ArrayList<>();
+		List<HashMap<String, SearchResult>> matches = new ArrayList<>(); // path and search result per query
+		for (int i = 0; i < queries.size(); i++) {
+			searchResultLists.add(new SearchResultList());
+			matches.add(new HashMap<>());
+		}
+
+		int visited = 0;
+		boolean stopped = false;
+		for (var entry : queriesByWord.entrySet()) {
+			List<Integer> sharing = entry.getValue();
+			stopped = stopped || budget.expired();
+			if (stopped) {
+				for (int i : sharing) {
+					cutShort[i] = true;
+				}
+				continue;
+			}
+			Term[] terms = new Term[sharing.size()];
+			for (int j = 0; j < terms.length; j++) {
+				terms[j] = matched.get(sharing.get(j)).get(entry.getKey());
+			}
+
+			for (var posting : invertedIndex.get(entry.getKey()).entrySet()) {
+				if (budget.expired(++visited)) {
+					stopped = true;
+					for (int i : sharing) {
+						cutShort[i] = true;
+					}
+					break;
+				}
+				int positions = posting.getValue().size();
+				for (int j = 0; j < terms.length; j++) {
+					int i = sharing.get(j);
+					SearchResult result = matches.get(i).get(posting.getKey());
+					if (result == null) {
+						result = new SearchResult(posting.getKey());
+						searchResultLists.get(i).add(result);
+						matches.get(i).put(posting.getKey(), result);
+					}
+					terms[j].addTo(result, positions);
+				}
+			}
+		}
+
+		for (int i = 0; i < queries.size(); i++) {
+			searchResultLists.set(i, best(addAliases(searchResultLists.get(i)), limit));
+			searchResultLists.get(i).timedOut = cutShort[i];
+		}
+		return searchResultLists;
 	}
 
 	/**
-	 * This method calls the PrettyJSONWriter method to write to the file
+	 * This method describes how a search would be evaluated without running it
 	 * 
-	 * @param path the path of the file to write to
-	 * @throws IOException throws an IOException
+	 * @param query the set of query words to search with
+	 * @param exact whether or not the search is exact
+	 * @param limit the maximum number of results to return, or 0 for all of them
+	 * @return a description of the query plan
+	 * 
+	 * @see QueryPlan#toString()
 	 */
-	public void toJson(Path path) throws IOException {
-		PrettyJsonWriter.writeJSON(this.invertedIndex, path);
+	public String explain(Set<String> query, boolean exact, int limit) {
+		return new QueryPlan(query, exact, limit).toString();
 	}
 
 	/**
-	 * This method calls the PrettyJSONWriter method to write the counts to a file
+	 * This method describes how a fuzzy search would be evaluated without running
+	 * it
 	 * 
-	 * @param path the path to write to
-	 * @throws IOException throws an IOException
+	 * @param query the set of query words to search with
+	 * @param edits the maximum edit distance of a match, either 1 or 2
+	 * @param limit the maximum number of results to return, or 0 for all of them
+	 * @return a description of the query plan
+	 * @throws IllegalArgumentException if the edit distance is not 1 or 2
+	 * 
+	 * @see QueryPlan#toString()
 	 */
-	public void countsToJson(Path path) throws IOException {
-		PrettyJsonWriter.writeObject(wordCounts, path);
+	public String explainFuzzy(Set<String> query, int edits, int limit) {
+		return new QueryPlan(query, edits, limit).toString();
 	}
 
 	/**
-	 * This method adds a list of words to the inverted index
+	 * This method describes how a wildcard search would be evaluated without
+	 * running it
 	 * 
-	 * @param words the list of words to add
-	 * @param path  the path of the file
+	 * @param patterns the set of wildcard patterns to search with
+	 * @param limit    the maximum number of results to return, or 0 for all of them
+	 * @return a description of the query plan
+	 * 
+	 * @see QueryPlan#toString()
 	 */
-	public void addAll(List<String> words, String path) {
-		int position = 1;
-		for (String word : words) {
-			add(word, path, position);
-			position++;
-		}
+	public String explainWildcard(Set<String> patterns, int limit) {
+		return new QueryPlan(patterns, limit).toString();
 	}
 
 	/**
-	 * This method adds an existing invertedIndex into the original. The local
-	 * inverted index and the existing inverted index should not overlap in files.
+	 * Class responsible for planning how a search is evaluated. The plan finds the
+	 * words matched by the query up front (walking each range of overlapping
+	 * prefixes only once), looks up how many locations and positions each word
+	 * has, and then picks the cheaper of two strategies:
 	 * 
-	 * @param local the inverted index to add to the original
+	 * <ul>
+	 * <li>term-at-a-time, which adds the locations of one word at a time to a map
+	 * of results, visiting the rarest words first, and then sorts the results</li>
+	 * <li>document-at-a-time, which walks the locations of every word together in
+	 * sorted order, and when only the best results are needed uses MaxScore dynamic
+	 * pruning to skip locations that cannot make the cut</li>
+	 * </ul>
+	 * 
+	 * @author ryank
+	 *
 	 */
-	public void addAll(InvertedIndex local) {
-		for (var entry : local.invertedIndex.entrySet()) {
-			if (!this.invertedIndex.containsKey(entry.getKey())) {
-				this.invertedIndex.put(entry.getKey(), local.invertedIndex.get(entry.getKey()));
-			} else {
-				for (var location : local.invertedIndex.get(entry.getKey()).entrySet()) {
-					TreeSet<Integer> positions = local.invertedIndex.get(entry.getKey()).get(location.getKey());
-					if (!this.invertedIndex.get(entry.getKey()).containsKey(location.getKey())) {
-						this.invertedIndex.get(entry.getKey()).put(location.getKey(), positions);
-					} else {
-						this.invertedIndex.get(entry.getKey()).get(location.getKey()).addAll(positions);
-					}
-				}
-			}
+	private class QueryPlan {
 
+		/**
+		 * the query words
+		 */
+		private final Set<String> query;
+
+		/**
+		 * the kind of search, such as exact or partial
+		 */
+		private final String type;
+
+		/**
+		 * the maximum number of results to return, or 0 for all of them
+		 */
+		private final int limit;
+
+		/**
+		 * the matched words in evaluation order
+		 */
+		private final List<Term> terms;
+
+		/**
+		 * number of locations across the matched words
+		 */
+		private final long locations;
+
+		/**
+		 * estimated cost of term-at-a-time evaluation
+		 */
+		private final double termCost;
+
+		/**
+		 * estimated cost of document-at-a-time evaluation
+		 */
+		private final double documentCost;
+
+		/**
+		 * the time budget of the search, shared by expansion and evaluation
+		 */
+		private final Budget budget;
+
+		/**
+		 * QueryPlan constructor
+		 * 
+		 * @param query the query words
+		 * @param exact whether or not the search is exact
+		 * @param limit the maximum number of results to return, or 0 for all of them
+		 */
+		private QueryPlan(Set<String> query, boolean exact, int limit) {
+			this(query, exact, limit, new Budget(timeout));
+		}
+
+		/**
+		 * QueryPlan constructor with a time budget
+		 * 
+		 * @param query  the query words
+		 * @param exact  whether or not the search is exact
+		 * @param limit  the maximum number of results to return, or 0 for all of
+		 *               them
+		 * @param budget the time budget of the search
+		 */
+		private QueryPlan(Set<String> query, boolean exact, int limit, Budget budget) {
+			this(query, exact ? "exact" : "partial", expand(query, exact, budget), limit, budget);
+		}
+
+		/**
+		 * QueryPlan constructor for fuzzy search
+		 * 
+		 * @param query the query words
+		 * @param edits the maximum edit distance of a match, either 1 or 2
+		 * @param limit the maximum number of results to return, or 0 for all of them
+		 */
+		private QueryPlan(Set<String> query, int edits, int limit) {
+			this(query, edits, limit, new Budget(timeout));
+		}
+
+		/**
+		 * QueryPlan constructor for fuzzy search with a time budget
+		 * 
+		 * @param query  the query words
+		 * @param edits  the maximum edit distance of a match, either 1 or 2
+		 * @param limit  the maximum number of results to return, or 0 for all of
+		 *               them
+		 * @param budget the time budget of the search
+		 */
+		private QueryPlan(Set<String> query, int edits, int limit, Budget budget) {
+			this(query, "fuzzy (" + edits + " edits)", expandFuzzy(query, edits, budget), limit, budget);
+		}
+
+		/**
+		 * QueryPlan constructor for wildcard search
+		 * 
+		 * @param patterns the wildcard patterns
+		 * @param limit    the maximum number of results to return, or 0 for all of
+		 *                 them
+		 */
+		private QueryPlan(Set<String> patterns, int limit) {
+			this(patterns, limit, new Budget(timeout));
+		}
+
+		/**
+		 * QueryPlan constructor for wildcard search with a time budget
+		 * 
+		 * @param patterns the wildcard patterns
+		 * @param limit    the maximum number of results to return, or 0 for all of
+		 *                 them
+		 * @param budget   the time budget of the search
+		 */
+		private QueryPlan(Set<String> patterns, int limit, Budget budget) {
+			this(patterns, "wildcard", expandWildcard(patterns, budget), limit, budget);
+		}
+
+		/**
+		 * QueryPlan constructor
+		 * 
+		 * @param query   the query words
+		 * @param type    the kind of search
+		 * @param matched the words matched by the query
+		 * @param limit   the maximum number of results to return, or 0 for all of
+		 *                them
+		 * @param budget  the time budget of the search
+		 */
+		private QueryPlan(Set<String> query, String type, TreeMap<String, Term> matched, int limit, Budget budget) {
+			this.query = query;
+			this.type = type;
+			this.limit = limit;
+			this.budget = budget;
+			budget.evaluate();
+			this.terms = new ArrayList<>(matched.values());
+			terms.sort((a, b) -> Integer.compare(a.postings.size(), b.postings.size()));
+
+			long locations = 0;
+			for (Term term : terms) {
+				locations += term.postings.size();
+			}
+			this.locations = locations;
+
+			// both visit every location and keep the best results in a heap or a sort,
+			// but document-at-a-time also moves each location through the cursor heap,
+			// which costs more per location as words are added; measured on a Zipf
+			// corpus with top 10 and top 100 limits, MaxScore pruning included, it
+			// is ahead at 1 or 2 words, about even at 4 and behind from 8 words up
+			this.termCost = locations;
+			this.documentCost = locations * (6 + log2(terms.size())) / 8;
+		}
+
+		/**
+		 * Whether or not this plan evaluates document-at-a-time. Only worth it when a
+		 * limit lets MaxScore skip locations and a heap replace the sort, and when
+		 * there are few enough words that the cursor heap stays cheap.
+		 * 
+		 * @return true if evaluating document-at-a-time
+		 */
+		private boolean isDocumentAtATime() {
+			return limit > 0 && documentCost < termCost;
+		}
+
+		/**
+		 * Whether or not this plan splits its words into ranges searched in parallel.
+		 * Only worth it when the search is expensive enough to cover the cost of
+		 * coordinating the threads.
+		 * 
+		 * @return true if searching in parallel
+		 */
+		private boolean isParallel() {
+			return parallelThreshold > 0 && locations >= parallelThreshold && terms.size() > 1;
+		}
+
+		/**
+		 * Runs this plan, stopping early with the best results found so far if it
+		 * runs out of time
+		 * 
+		 * @return a list of sorted SearchResults objects
+		 */
+		private SearchResultList execute() {
+			SearchResultList searchResultList = isDocumentAtATime() ? documentAtATime() : termAtATime();
+			searchResultList.timedOut = budget.timedOut;
+			return searchResultList;
+		}
+
+		/**
+		 * Evaluates the plan one word at a time
+		 * 
+		 * @return a list of sorted SearchResults objects
+		 */
+		private SearchResultList termAtATime() {
+			SearchResultList searchResultList = new SearchResultList();
+			if (isParallel()) {
+				searchResultList.addAll(parallelCount().values());
+			} else {
+				HashMap<String, SearchResult> matches = new HashMap<>(); // path and search result
+				int visited = 0;
+
+				for (Term term : terms) {
+					if (budget.expired()) {
+						break;
+					}
+					for (var posting : term.postings.entrySet()) {
+						if (budget.expired(++visited)) {
+							break;
+						}
+						SearchResult result = matches.get(posting.getKey());
+						if (result == null) {
+							result = new SearchResult(posting.getKey());
+							searchResultList.add(result);
+							matches.put(posting.getKey(), result);
+						}
+						term.addTo(result, posting.getValue().size());
+					}
+				}
+			}
+
+			return best(addAliases(searchResultList), limit);
+		}
+
+		/**
+		 * Splits the words into ranges with about the same number of locations,
+		 * counts the matches of each range in parallel, and merges the counts
+		 * 
+		 * @return a map from location to search result
+		 */
+		private HashMap<String, SearchResult> parallelCount() {
+			int ranges = Math.min(terms.size(), ForkJoinPool.getCommonPoolParallelism() + 1);
+			long size = (locations + ranges - 1) / ranges;
+
+			List<List<Term>> split = new ArrayList<>();
+			int start = 0;
+			long visited = 0;
+			for (int i = 0; i < terms.size(); i++) {
+				visited += terms.get(i).postings.size();
+				if (visited >= size * (split.size() + 1) || i == terms.size() - 1) {
+					split.add(terms.subList(start, i + 1));
+					start = i + 1;
+				}
+			}
+
+			// the caller holds any lock needed, and the ranges only read the index
+			List<HashMap<String, SearchResult>> counts = split.parallelStream().map(this::count).toList();
+
+			HashMap<String, SearchResult> merged = counts.get(0);
+			for (int i = 1; i < counts.size(); i++) {
+				for (SearchResult count : counts.get(i).values()) {
+					SearchResult result = merged.putIfAbsent(count.location, count);
+					if (result != null) {
+						result.add(count.count, count.weighted);
+					}
+				}
+			}
+			return merged;
+		}
+
+		/**
+		 * Counts the matches of a range of words
+		 * 
+		 * @param range the words to count
+		 * @return a map from location to search result
+		 */
+		private HashMap<String, SearchResult> count(List<Term> range) {
+			HashMap<String, SearchResult> counts = new HashMap<>();
+			int visited = 0;
+			for (Term term : range) {
+				if (budget.expired()) {
+					break;
+				}
+				for (var posting : term.postings.entrySet()) {
+					if (budget.expired(++visited)) {
+						break;
+					}
+					SearchResult result = counts.computeIfAbsent(posting.getKey(), SearchResult::new);
+					term.addTo(result, posting.getValue().size());
+				}
+			}
+			return counts;
+		}
+
+		/**
+		 * Evaluates the plan one location at a time using MaxScore dynamic pruning.
+		 * The cursors of the words are kept in a heap by their current location, so
+		 * the next location comes off the top instead of a scan of every word. Once
+		 * the heap of the best results is full, the words whose combined upper bounds
+		 * cannot reach the worst result in it leave the cursor heap and are only
+		 * looked up for locations found through the other words.
+		 * 
+		 * @return a list of sorted SearchResults objects
+		 */
+		private SearchResultList documentAtATime() {
+			ArrayList<Cursor> cursors = new ArrayList<>();
+			for (Term term : terms) {
+				cursors.add(new Cursor(term));
+			}
+			cursors.sort((a, b) -> Double.compare(a.bound, b.bound));
+
+			// bounds[i] is the combined upper bound of cursors 0 through i - 1
+			double[] bounds = new double[cursors.size() + 1];
+			for (int i = 0; i < cursors.size(); i++) {
+				bounds[i + 1] = bounds[i] + cursors.get(i).bound;
+			}
+
+			// the cursors of the essential words that still have locations
+			PriorityQueue<Cursor> byLocation = new PriorityQueue<>(cursors.size(),
+					(a, b) -> a.location.compareTo(b.location));
+			for (Cursor cursor : cursors) {
+				if (cursor.location != null) {
+					byLocation.add(cursor);
+				}
+			}
+
+			PriorityQueue<SearchResult> heap = new PriorityQueue<>(limit + 1, Collections.reverseOrder());
+			double threshold = 0;
+			int essential = 0;
+			int visited = 0;
+
+			while (!byLocation.isEmpty() && !budget.expired(++visited)) {
+				String location = byLocation.peek().location;
+				SearchResult result = new SearchResult(location);
+				while (!byLocation.isEmpty() && location.equals(byLocation.peek().location)) {
+					Cursor cursor = byLocation.poll();
+					cursor.term.addTo(result, cursor.postings.get(location).size());
+					cursor.next();
+					if (cursor.location != null) {
+						byLocation.add(cursor);
+					}
+				}
+
+				boolean pruned = false;
+				for (int i = essential - 1; i >= 0; i--) {
+					if ((result.score + bounds[i + 1]) * (1 + EPSILON) < threshold) {
+						pruned = true;
+						break;
+					}
+					TreeSet<Integer> positions = cursors.get(i).postings.get(location);
+					if (positions != null) {
+						cursors.get(i).term.addTo(result, positions.size());
+					}
+				}
+				if (pruned) {
+					continue;
+				}
+
+				// an alias can make the cut even if its canonical location does not
+				boolean added = offer(heap, result, limit);
+				for (String alias : aliasesOf(location)) {
+					added |= offer(heap, new SearchResult(alias, result), limit);
+				}
+				if (added && heap.size() == limit) {
+					threshold = heap.peek().score;
+					while (essential < cursors.size() && bounds[essential + 1] * (1 + EPSILON) < threshold) {
+						byLocation.remove(cursors.get(essential++));
+					}
+				}
+			}
+
+			SearchResultList searchResultList = new SearchResultList();
+			searchResultList.addAll(heap);
+			Collections.sort(searchResultList);
+			return searchResultList;
+		}
+
+		/**
+		 * Describes the chosen strategy, its estimated cost, and the matched words in
+		 * evaluation order with their location and position counts
+		 */
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append(type).append(" search for ").append(query);
+			if (limit > 0) {
+				builder.append(" (top ").append(limit).append(")");
+			}
+			builder.append(": ").append(isDocumentAtATime() ? "document-at-a-time" : "term-at-a-time");
+			if (!isDocumentAtATime() && isParallel()) {
+				builder.append(" in parallel");
+			}
+			builder.append(String.format(" [term cost=%.0f, document cost=%.0f]", termCost, documentCost));
+			if (budget.timedOut) {
+				builder.append(" (ran out of time while matching words)");
+			}
+			for (Term term : terms) {
+				builder.append("\n  ").append(term);
+			}
+			return builder.toString();
+		}
+	}
+
+	/**
+	 * This method adds a result for each alias of the locations found, with the
+	 * same count and score as its canonical location
+	 * 
+	 * @param searchResultList the search results of canonical locations
+	 * @return the same list with the results of the aliases added
+	 */
+	private SearchResultList addAliases(SearchResultList searchResultList) {
+		if (aliases.isEmpty()) {
+			return searchResultList;
+		}
+		int size = searchResultList.size();
+		for (int i = 0; i < size; i++) {
+			SearchResult result = searchResultList.get(i);
+			for (String alias : aliasesOf(result.location)) {
+				searchResultList.add(new SearchResult(alias, result));
+			}
+		}
+		return searchResultList;
+	}
+
+	/**
+	 * This method sorts search results, keeping only the best ones if there is a
+	 * limit
+	 * 
+	 * @param searchResultList the search results
+	 * @param limit            the maximum number of results to keep, or 0 for all
+	 *                         of them
+	 * @return a list of sorted SearchResults objects
+	 */
+	private static SearchResultList best(SearchResultList searchResultList, int limit) {
+		if (limit > 0 && searchResultList.size() > limit) {
+			PriorityQueue<SearchResult> heap = new PriorityQueue<>(limit + 1, Collections.reverseOrder());
+			for (SearchResult result : searchResultList) {
+				offer(heap, result, limit);
+			}
+			searchResultList = new SearchResultList();
+			searchResultList.addAll(heap);
+		}
+
+		Collections.sort(searchResultList);
+		return searchResultList;
+	}
+
+	/**
+	 * This method adds a result to a heap of the best results if it makes the cut
+	 * 
+	 * @param heap   the heap with the worst result at its head
+	 * @param result the result to add
+	 * @param limit  the maximum number of results in the heap
+	 * @return true if the result was added
+	 */
+	private static boolean offer(PriorityQueue<SearchResult> heap, SearchResult result, int limit) {
+		if (heap.size() < limit) {
+			heap.add(result);
+			return true;
+		}
+		if (result.compareTo(heap.peek()) < 0) {
+			heap.poll();
+			heap.add(result);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Class responsible for the statistics of a word matched by a query
+	 * 
+	 * @author ryank
+	 *
+	 */
+	private class Term {
+
+		/**
+		 * the matched word
+		 */
+		private final String word;
+
+		/**
+		 * how many query words matched the word
+		 */
+		private int weight;
+
+		/**
+		 * how many query words matched the word, weighted by how closely they matched
+		 */
+		private double boost;
+
+		/**
+		 * the locations and positions of the word
+		 */
+		private final TreeMap<String, TreeSet<Integer>> postings;
+
+		/**
+		 * Term constructor
+		 * 
+		 * @param word the matched word
+		 */
+		private Term(String word) {
+			this.word = word;
+			this.weight = 0;
+			this.boost = 0;
+			this.postings = invertedIndex.get(word);
+		}
+
+		/**
+		 * Records another query word matching the word
+		 * 
+		 * @param edits the edit distance between the query word and the word
+		 */
+		private void match(int edits) {
+			this.weight++;
+			this.boost += 1 / (1 + PENALTY * edits);
+		}
+
+		/**
+		 * Adds the matches of the word at a location to its search result
+		 * 
+		 * @param result    the search result of the location
+		 * @param positions the number of positions of the word at the location
+		 */
+		private void addTo(SearchResult result, int positions) {
+			result.add(weight * positions, boost * positions);
+		}
+
+		/**
+		 * String representation of the word statistics
+		 */
+		@Override
+		public String toString() {
+			return word + " {locations=" + postings.size() + ", positions=" + positionCounts.getOrDefault(word, 0)
+					+ ", weight=" + weight + (boost != weight ? ", boost=" + boost : "") + "}";
+		}
+	}
+
+	/**
+	 * This method finds the words in the inverted index matched by a set of query
+	 * words, along with how many of the query words match each of them. Query words
+	 * that start with another query word fall inside its range of matches, so each
+	 * range is only walked once.
+	 * 
+	 * @param query  the set of query words
+	 * @param exact  whether or not the query words must match exactly
+	 * @param budget the time budget of the search
+	 * @return a map from matched words to their statistics
+	 */
+	private TreeMap<String, Term> expand(Set<String> query, boolean exact, Budget budget) {
+		TreeMap<String, Term> matched = new TreeMap<>();
+		if (exact) {
+			for (String queryWord : query) {
+				if (invertedIndex.containsKey(queryWord)) {
+					match(queryWord, 0, matched);
+				}
+			}
+			return matched;
+		}
+
+		// sorted order puts every query word right after the prefixes it starts with
+		ArrayList<String> group = new ArrayList<>();
+		for (String queryWord : new TreeSet<>(query)) {
+			if (!group.isEmpty() && !queryWord.startsWith(group.get(0))) {
+				expandGroup(group, matched, budget);
+				group.clear();
+			}
+			group.add(queryWord);
+		}
+		if (!group.isEmpty()) {
+			expandGroup(group, matched, budget);
+		}
+		return matched;
+	}
+
+	/**
+	 * This method walks the matches of the first query word of a group, counting
+	 * how many of the group's query words each match starts with
+	 * 
+	 * @param group   sorted query words that all start with the first one
+	 * @param matched the map of matched words to add to
+	 * @param budget  the time budget of the search
+	 */
+	private void expandGroup(List<String> group, TreeMap<String, Term> matched, Budget budget) {
+		String prefix = group.get(0);
+		for (String invertedIndexWord : invertedIndex.tailMap(prefix).keySet()) {
+			if (!invertedIndexWord.startsWith(prefix) || budget.expired()) {
+				break;
+			}
+			for (String queryWord : group) {
+				if (invertedIndexWord.startsWith(queryWord)) {
+					match(invertedIndexWord, 0, matched);
+				}
+			}
+		}
+	}
+
+	/**
+	 * This method finds the words in the inverted index within a maximum edit
+	 * distance of a set of query words. Each query word walks the sorted words with
+	 * a Levenshtein automaton, only stepping through the characters each word does
+	 * not share with the one before it, and skipping every word that starts with a
+	 * prefix the automaton can no longer match.
+	 * 
+	 * @param query  the set of query words
+	 * @param edits  the maximum edit distance of a match
+	 * @param budget the time budget of the search
+	 * @return a map from matched words to their statistics
+	 */
+	private TreeMap<String, Term> expandFuzzy(Set<String> query, int edits, Budget budget) {
+		TreeMap<String, Term> matched = new TreeMap<>();
+		for (String queryWord : query) {
+			LevenshteinAutomaton automaton = new LevenshteinAutomaton(queryWord, edits);
+			ArrayList<int[]> states = new ArrayList<>();
+			states.add(automaton.start());
+
+			String previous = "";
+			String word = invertedIndex.isEmpty() ? null : invertedIndex.firstKey();
+			while (word != null && !budget.expired()) {
+				// states.get(i) is the state after reading the first i characters of the
+				// previous word, so the shared prefix does not need to be read again
+				int i = 0;
+				while (i < word.length() && i < previous.length() && i + 1 < states.size()
+						&& word.charAt(i) == previous.charAt(i)) {
+					i++;
+				}
+
+				boolean dead = false;
+				while (i < word.length()) {
+					int[] state = automaton.step(states.get(i), word.charAt(i));
+					i++;
+					if (states.size() > i) {
+						states.set(i, state);
+					} else {
+						states.add(state);
+					}
+					if (!automaton.canMatch(state)) {
+						dead = true;
+						break;
+					}
+				}
+				while (states.size() > i + 1) {
+					states.remove(states.size() - 1);
+				}
+				previous = word;
+
+				if (dead) {
+					String next = successor(word.substring(0, i));
+					word = next == null ? null : invertedIndex.ceilingKey(next);
+					continue;
+				}
+				if (automaton.isMatch(states.get(i))) {
+					match(word, automaton.distance(states.get(i)), matched);
+				}
+				word = invertedIndex.higherKey(word);
+			}
+		}
+		return matched;
+	}
+
+	/**
+	 * This method finds the words in the inverted index matching a set of wildcard
+	 * patterns using the rotations of every word
+	 * 
+	 * @param patterns the set of wildcard patterns
+	 * @param budget   the time budget of the search
+	 * @return a map from matched words to their statistics
+	 */
+	private TreeMap<String, Term> expandWildcard(Set<String> patterns, Budget budget) {
+		TreeMap<String, Term> matched = new TreeMap<>();
+		PermutermIndex rotations = permuterm();
+		for (String pattern : patterns) {
+			if (budget.expired()) {
+				break;
+			}
+			for (String word : rotations.matches(pattern)) {
+				match(word, 0, matched);
+			}
+		}
+		return matched;
+	}
+
+	/**
+	 * This method returns the rotations of every word, building them on first use.
+	 * Synchronized so that concurrent readers only build them once; writers keep
+	 * them up to date afterwards.
+	 * 
+	 * @return the rotations of every word
+	 */
+	private synchronized PermutermIndex permuterm() {
+		if (permuterm == null) {
+			permuterm = new PermutermIndex(invertedIndex.keySet());
+		}
+		return permuterm;
+	}
+
+	/**
+	 * Records a query word matching a word in the inverted index
+	 * 
+	 * @param word    the matched word
+	 * @param edits   the edit distance between the query word and the word
+	 * @param matched the map of matched words to add to
+	 */
+	private void match(String word, int edits, TreeMap<String, Term> matched) {
+		matched.computeIfAbsent(word, Term::new).match(edits);
+	}
+
+	/**
+	 * Returns the first string that sorts after every string starting with a
+	 * prefix
+	 * 
+	 * @param prefix the prefix to skip
+	 * @return the first string after the prefix, or null if there is none
+	 */
+	private static String successor(String prefix) {
+		StringBuilder builder = new StringBuilder(prefix);
+		while (builder.length() > 0) {
+			char last = builder.charAt(builder.length() - 1);
+			if (last != Character.MAX_VALUE) {
+				builder.setCharAt(builder.length() - 1, (char) (last + 1));
+				return builder.toString();
+			}
+			builder.setLength(builder.length() - 1);
+		}
+		return null;
+	}
+
+	/**
+	 * Runs searches that stop early once they are cancelled, which is how
+	 * cancelled asynchronous searches are stopped. Searches check for
+	 * cancellation along with their time budget and throw a
+	 * {@link CancellationException} once cancelled. Threads running searches are
+	 * never interrupted, since an interrupt could break the lock a search holds.
+	 * 
+	 * @param <T>       the type of the results
+	 * @param cancelled whether the searches have been cancelled
+	 * @param search    the searches to run on the current thread
+	 * @return the results of the searches
+	 * @throws CancellationException if the searches were cancelled
+	 */
+	public static <T> T cancellable(BooleanSupplier cancelled, Supplier<T> search) {
+		BooleanSupplier previous = cancellation.get();
+		cancellation.set(cancelled);
+		try {
+			return search.get();
+		}
+		finally {
+			cancellation.set(previous);
+		}
+	}
+
+	/**
+	 * Returns the base 2 logarithm of a count, or 0 for counts under 2
+	 * 
+	 * @param count the count
+	 * @return the logarithm
+	 */
+	private static double log2(long count) {
+		return count < 2 ? 0 : Math.log(count) / Math.log(2);
+	}
+
+	/**
+	 * Class responsible for walking the locations of a single word in order during
+	 * document-at-a-time search
+	 * 
+	 * @author ryank
+	 *
+	 */
+	private class Cursor {
+
+		/**
+		 * the matched word to walk
+		 */
+		private final Term term;
+
+		/**
+		 * the locations and positions of the word
+		 */
+		private final TreeMap<String, TreeSet<Integer>> postings;
+
+		/**
+		 * upper bound on the score this word can add to a location
+		 */
+		private final double bound;
+
+		/**
+		 * iterator over the remaining locations
+		 */
+		private final Iterator<String> iterator;
+
+		/**
+		 * the current location, or null once every location has been visited
+		 */
+		private String location;
+
+		/**
+		 * Cursor constructor
+		 * 
+		 * @param term the matched word to walk
+		 */
+		private Cursor(Term term) {
+			this.term = term;
+			this.postings = term.postings;
+			// no location scores more than 1 for a word, so that bound is always safe
+			this.bound = term.boost * (maxScoresValid ? maxScores.getOrDefault(term.word, 1.0) : 1.0);
+			this.iterator = postings.keySet().iterator();
+			next();
+		}
+
+		/**
+		 * Moves this cursor to the next location
+		 */
+		private void next() {
+			location = iterator.hasNext() ? iterator.next() : null;
+		}
+	}
+
+	/**
+	 * this method adds the word to the invertedIndex data structure at its
+	 * specified position. The score upper bounds are not updated until
+	 * {@link #updateMaxScores()}, since the location is still growing.
+	 * 
+	 * @param path     the path of the file
+	 * @param word     the word to add
+	 * @param position the position of the word
+	 */
+	public void add(String word, String path, int position) {
+		if (this.invertedIndex.putIfAbsent(word, new TreeMap<String, TreeSet<Integer>>()) == null && permuterm != null) {
+			permuterm.add(word);
+		}
+		this.invertedIndex.get(word).putIfAbsent(path, new TreeSet<Integer>());
+		boolean modified = this.invertedIndex.get(word).get(path).add(position);
+
+		if (modified) {
+			this.wordCounts.putIfAbsent(path, 0);
+			this.wordCounts.put(path, this.wordCounts.get(path) + 1);
+			this.positionCounts.merge(word, 1, Integer::sum);
+			this.maxScoresValid = false;
+		}
+	}
+
+	/**
+	 * This method recalculates the score upper bound of every word from the final
+	 * word counts of its locations. Call it once words are done being added one
+	 * at a time, such as after building the index file by file.
+	 * 
+	 * @see #add(String, String, int)
+	 */
+	public void updateMaxScores() {
+		this.maxScores.clear();
+		for (String word : this.invertedIndex.keySet()) {
+			this.maxScores.put(word, maxScore(word));
+		}
+		this.maxScoresValid = true;
+	}
+
+	/**
+	 * This method calculates the highest score any location gets from a word
+	 * 
+	 * @param word the word
+	 * @return the highest score of the word
+	 */
+	private double maxScore(String word) {
+		double max = 0;
+		for (var posting : this.invertedIndex.get(word).entrySet()) {
+			max = Math.max(max, posting.getValue().size() / (double) this.wordCounts.get(posting.getKey()));
+		}
+		return max;
+	}
+
+	/**
+	 * This method raises the score upper bound of a word if needed. Adding words
+	 * to a location only lowers the scores of its other words, so the bounds stay
+	 * valid without being recalculated.
+	 * 
+	 * @param word  the word to update
+	 * @param score a score the word gives some location
+	 */
+	private void updateMaxScore(String word, double score) {
+		this.maxScores.merge(word, score, Math::max);
+	}
+
+	/**
+	 * ToString implementation of the inverted index data structure
+	 */
+	@Override
+	public String toString() {
+		return "InvertedIndex: " + invertedIndex + "";
+	}
+
+	/**
+	 * This method calls the PrettyJSONWriter method to write to the file
+	 * 
+	 * @param path the path of the file to write to
+	 * @throws IOException throws an IOException
+	 */
+	public void toJson(Path path) throws IOException {
+		if (aliases.isEmpty()) {
+			PrettyJsonWriter.writeJSON(this.invertedIndex, path);
+			return;
+		}
+		TreeMap<String, TreeMap<String, TreeSet<Integer>>> expanded = new TreeMap<>();
+		for (var entry : this.invertedIndex.entrySet()) {
+			expanded.put(entry.getKey(), withAliases(entry.getValue()));
+		}
+		PrettyJsonWriter.writeJSON(expanded, path);
+	}
+
+	/**
+	 * This method calls the PrettyJSONWriter method to write the counts to a file
+	 * 
+	 * @param path the path to write to
+	 * @throws IOException throws an IOException
+	 */
+	public void countsToJson(Path path) throws IOException {
+		PrettyJsonWriter.writeObject(withAliases(wordCounts), path);
+	}
+
+	/**
+	 * Returns a map by location with the value of each canonical location copied
+	 * to its aliases
+	 * 
+	 * @param <V>        the type of the values
+	 * @param byLocation the map by canonical location
+	 * @return the map itself if none of its locations have aliases, otherwise a
+	 *         copy with the aliases added
+	 */
+	private <V> TreeMap<String, V> withAliases(TreeMap<String, V> byLocation) {
+		TreeMap<String, V> expanded = null;
+		for (var entry : byLocation.entrySet()) {
+			TreeSet<String> copies = aliases.get(entry.getKey());
+			if (copies != null) {
+				if (expanded == null) {
+					expanded = new TreeMap<>(byLocation);
+				}
+				for (String alias : copies) {
+					expanded.put(alias, entry.getValue());
+				}
+			}
+		}
+		return expanded == null ? byLocation : expanded;
+	}
+
+	/**
+	 * This method records that a location has the same contents as another, so
+	 * instead of being indexed again it shares the postings and word count of
+	 * the canonical location. Aliases are listed with their canonical location in
+	 * search results and in the JSON output, but not by the other getters.
+	 * 
+	 * @param canonical the location that was indexed
+	 * @param alias     the location with the same contents
+	 * 
+	 * @see Deduplicator
+	 */
+	public void addAlias(String canonical, String alias) {
+		canonical = canonicals.getOrDefault(canonical, canonical);
+		if (!canonical.equals(alias)) {
+			canonicals.put(alias, canonical);
+			aliases.computeIfAbsent(canonical, location -> new TreeSet<>()).add(alias);
+		}
+	}
+
+	/**
+	 * This method returns the aliases of a location
+	 * 
+	 * @param location the canonical location
+	 * @return an unmodifiable set of the locations with the same contents
+	 */
+	public Set<String> getAliases(String location) {
+		return Collections.unmodifiableSet(aliasesOf(location));
+	}
+
+	/**
+	 * Returns the aliases of a location
+	 * 
+	 * @param location the canonical location
+	 * @return the aliases, or an empty set if there are none
+	 */
+	private Set<String> aliasesOf(String location) {
+		TreeSet<String> copies = aliases.get(location);
+		return copies == null ? Collections.emptySet() : copies;
+	}
+
+	/**
+	 * This method adds a list of words to the inverted index. Like
+	 * {@link #add(String, String, int)}, it leaves the score upper bounds to
+	 * {@link #updateMaxScores()}.
+	 * 
+	 * @param words the list of words to add
+	 * @param path  the path of the file
+	 */
+	public void addAll(List<String> words, String path) {
+		int position = 1;
+		for (String word : words) {
+			add(word, path, position);
+			position++;
+		}
+	}
+
+	/**
+	 * This method adds an existing invertedIndex into the original. The local
+	 * inverted index and the existing inverted index should not overlap in files.
+	 * 
+	 * @param local the inverted index to add to the original
+	 */
+	public void addAll(InvertedIndex local) {
+		addAll(local, 0);
+	}
+
+	/**
+	 * This method adds an existing invertedIndex into the original, shifting the
+	 * positions of its words by an offset. This merges separately indexed ranges
+	 * of the same file, where the positions of each range start at 1 and the
+	 * offset is the number of words in the file before it.
+	 * 
+	 * @param local  the inverted index to add to the original
+	 * @param offset how much to add to every position of the local index
+	 * 
+	 * @see IndexBuilder#buildInvertedIndex(Path, long, long, InvertedIndex)
+	 */
+	public void addAll(InvertedIndex local, int offset) {
+		for (var entry : local.invertedIndex.entrySet()) {
+			if (!this.invertedIndex.containsKey(entry.getKey())) {
+				if (offset == 0) {
+					this.invertedIndex.put(entry.getKey(), entry.getValue());
+				} else {
+					TreeMap<String, TreeSet<Integer>> locations = new TreeMap<>();
+					for (var location : entry.getValue().entrySet()) {
+						locations.put(location.getKey(), shift(location.getValue(), offset));
+					}
+					this.invertedIndex.put(entry.getKey(), locations);
+				}
+				if (permuterm != null) {
+					permuterm.add(entry.getKey());
+				}
+			} else {
+				for (var location : entry.getValue().entrySet()) {
+					TreeSet<Integer> positions = shift(location.getValue(), offset);
+					if (!this.invertedIndex.get(entry.getKey()).containsKey(location.getKey())) {
+						this.invertedIndex.get(entry.getKey()).put(location.getKey(), positions);
+					} else {
+						this.invertedIndex.get(entry.getKey()).get(location.getKey()).addAll(positions);
+					}
+				}
+			}
+
+		}
+		for (var location : local.wordCounts.entrySet()) {
+			if (!this.wordCounts.containsKey(location.getKey())) {
+				this.wordCounts.put(location.getKey(), local.wordCounts.get(location.getKey()));
+			} else {
+				int wordCount = this.wordCounts.getOrDefault(location.getKey(), 0) + local.wordCounts.get(location.getKey());
+				this.wordCounts.put(location.getKey(), wordCount);
+			}
+		}
+		for (var copies : local.aliases.entrySet()) {
+			for (String alias : copies.getValue()) {
+				addAlias(copies.getKey(), alias);
+			}
+		}
+		for (var positionCount : local.positionCounts.entrySet()) {
+			this.positionCounts.merge(positionCount.getKey(), positionCount.getValue(), Integer::sum);
+		}
+		// scores from the merged counts; locations merged later only lower the others
+		for (var entry : local.invertedIndex.entrySet()) {
+			TreeMap<String, TreeSet<Integer>> postings = this.invertedIndex.get(entry.getKey());
+			for (String location : entry.getValue().keySet()) {
+				updateMaxScore(entry.getKey(), postings.get(location).size() / (double) this.wordCounts.get(location));
+			}
+		}
+	}
+
+	/**
+	 * This method removes the words of some locations from the inverted index,
+	 * such as files that were deleted or changed. The score upper bounds of words
+	 * that lose locations are recalculated, so that locations no longer in the
+	 * index do not keep them raised. A
+	 * removed location with aliases that are not removed hands its words to the
+	 * first of them, which becomes the canonical location of the rest, since the
+	 * aliases still have the same contents.
+	 * 
+	 * @param locations the locations to remove
+	 */
+	public void removeAll(Collection<String> locations) {
+		if (locations.isEmpty()) {
+			return;
+		}
+		Set<String> removing = locations instanceof Set<String> set ? set : new TreeSet<>(locations);
+
+		// the alias taking over the words of each removed canonical location
+		TreeMap<String, String> promoted = new TreeMap<>();
+		for (String location : removing) {
+			for (String copy : aliasesOf(location)) {
+				if (!removing.contains(copy)) {
+					promoted.put(location, copy);
+					break;
+				}
+			}
+		}
+
+		// words that lost locations, whose upper bounds are recalculated at the end
+		List<String> rescore = new ArrayList<>();
+		var words = this.invertedIndex.entrySet().iterator();
+		while (words.hasNext()) {
+			var entry = words.next();
+			String word = entry.getKey();
+			TreeMap<String, TreeSet<Integer>> postings = entry.getValue();
+			TreeMap<String, TreeSet<Integer>> moved = new TreeMap<>();
+			int removed = 0;
+			if (postings.size() <= removing.size()) {
+				var iterator = postings.entrySet().iterator();
+				while (iterator.hasNext()) {
+					var posting = iterator.next();
+					if (removing.contains(posting.getKey())) {
+						iterator.remove();
+						String copy = promoted.get(posting.getKey());
+						if (copy != null) {
+							moved.put(copy, posting.getValue());
+						} else {
+							removed += posting.getValue().size();
+						}
+					}
+				}
+			} else {
+				for (String location : removing) {
+					TreeSet<Integer> positions = postings.remove(location);
+					if (positions != null) {
+						String copy = promoted.get(location);
+						if (copy != null) {
+							moved.put(copy, positions);
+						} else {
+							removed += positions.size();
+						}
+					}
+				}
+			}
+			postings.putAll(moved);
+
+			if (postings.isEmpty()) {
+				words.remove();
+				this.positionCounts.remove(word);
+				this.maxScores.remove(word);
+				if (permuterm != null) {
+					permuterm.remove(word);
+				}
+			} else if (removed > 0) {
+				this.positionCounts.merge(word, -removed, Integer::sum);
+				rescore.add(word);
+			}
+		}
+
+		// removed aliases first, so only the aliases left are handed on
+		for (String location : removing) {
+			String canonical = this.canonicals.remove(location);
+			if (canonical != null) {
+				this.aliases.get(canonical).remove(location);
+				if (this.aliases.get(canonical).isEmpty()) {
+					this.aliases.remove(canonical);
+				}
+			}
+		}
+		for (String location : removing) {
+			Integer count = this.wordCounts.remove(location);
+			TreeSet<String> copies = this.aliases.remove(location);
+			String copy = promoted.get(location);
+			if (copy != null) {
+				if (count != null) {
+					this.wordCounts.put(copy, count);
+				}
+				this.canonicals.remove(copy);
+				copies.remove(copy);
+				for (String rest : copies) {
+					this.canonicals.put(rest, copy);
+				}
+				if (!copies.isEmpty()) {
+					this.aliases.put(copy, copies);
+				}
+			}
+		}
+		for (String word : rescore) {
+			this.maxScores.put(word, maxScore(word));
+		}
+	}
+
+	/**
+	 * This method returns every location recorded as an alias of another
+	 * 
+	 * @return an unmodifiable set of the aliases
+	 */
+	public Set<String> getAliasLocations() {
+		return Collections.unmodifiableSet(canonicals.keySet());
+	}
+
+	/**
+	 * This method replaces some locations with a newly built local index in one
+	 * step, so a search never sees a location half updated
+	 * 
+	 * @param removed the locations to remove, including any being replaced
+	 * @param local   the inverted index of the new and changed locations
+	 */
+	public void update(Collection<String> removed, InvertedIndex local) {
+		removeAll(removed);
+		addAll(local);
+	}
+
+	/**
+	 * Returns positions shifted by an offset
+	 * 
+	 * @param positions the positions to shift
+	 * @param offset    how much to add to every position
+	 * @return the positions themselves if the offset is 0, otherwise a shifted copy
+	 */
+	private static TreeSet<Integer> shift(TreeSet<Integer> positions, int offset) {
+		if (offset == 0) {
+			return positions;
+		}
+		TreeSet<Integer> shifted = new TreeSet<>();
+		for (int position : positions) {
+			shifted.add(position + offset);
 		}
-		for (var location : local.wordCounts.entrySet()) {
-			if (!this.wordCounts.containsKey(location.getKey())) {
-				this.wordCounts.put(location.getKey(), local.wordCounts.get(location.getKey()));
-			} else {
-				int wordCount = this.wordCounts.getOrDefault(location.getKey(), 0) + local.wordCounts.get(location.getKey());
-				this.wordCounts.put(location.getKey(), wordCount);
-			}
-		}
+		return shifted;
 	}
 
 	/**
@@ -416,7 +1971,7 @@ public class InvertedIndex {
 	 * @return the total word count
 	 */
 	public int getFilesTotalWords(String location) {
-		return this.wordCounts.getOrDefault(location, 0);
+		return this.wordCounts.getOrDefault(canonicals.getOrDefault(location, location), 0);
 	}
 
-}
\ No newline at end of file
+}
\ No newline at end of file
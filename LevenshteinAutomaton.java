@@ -0,0 +1,115 @@
+package edu.usfca.cs272;
+
+/**
+ * Class responsible for matching words within a maximum edit distance of a
+ * query word. Each state of the automaton is the row of the Levenshtein
+ * distance table for the characters read so far, so a state can tell both the
+ * distance of the characters read so far and whether reading more characters
+ * could ever match. Walking a sorted dictionary with it only needs one step per
+ * character that differs from the previous word, and whole ranges of words that
+ * start with a prefix that can no longer match can be skipped.
+ * 
+ * @author ryank
+ *
+ */
+public class LevenshteinAutomaton {
+
+	/**
+	 * the word to match
+	 */
+	private final String word;
+
+	/**
+	 * the maximum edit distance of a match
+	 */
+	private final int edits;
+
+	/**
+	 * LevenshteinAutomaton constructor
+	 * 
+	 * @param word  the word to match
+	 * @param edits the maximum edit distance of a match, either 1 or 2
+	 * @throws IllegalArgumentException if the edit distance is not 1 or 2
+	 */
+	public LevenshteinAutomaton(String word, int edits) {
+		if (edits < 1 || edits > 2) {
+			throw new IllegalArgumentException("Edit distance must be 1 or 2: " + edits);
+		}
+		this.word = word;
+		this.edits = edits;
+	}
+
+	/**
+	 * Returns the state before reading any characters
+	 * 
+	 * @return the start state
+	 */
+	public int[] start() {
+		int[] state = new int[word.length() + 1];
+		for (int i = 0; i < state.length; i++) {
+			state[i] = i;
+		}
+		return state;
+	}
+
+	/**
+	 * Returns the state after reading one more character
+	 * 
+	 * @param state the current state
+	 * @param c     the character to read
+	 * @return the next state
+	 */
+	public int[] step(int[] state, char c) {
+		int[] next = new int[state.length];
+		next[0] = state[0] + 1;
+		for (int i = 1; i < state.length; i++) {
+			int substitute = state[i - 1] + (word.charAt(i - 1) == c ? 0 : 1);
+			next[i] = Math.min(substitute, Math.min(state[i] + 1, next[i - 1] + 1));
+		}
+		return next;
+	}
+
+	/**
+	 * Whether or not the characters read so far are within the maximum edit
+	 * distance of the word
+	 * 
+	 * @param state the current state
+	 * @return true if the state matches
+	 */
+	public boolean isMatch(int[] state) {
+		return distance(state) <= edits;
+	}
+
+	/**
+	 * Whether or not reading more characters could ever lead to a match
+	 * 
+	 * @param state the current state
+	 * @return true if a match is still possible
+	 */
+	public boolean canMatch(int[] state) {
+		for (int distance : state) {
+			if (distance <= edits) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the edit distance between the characters read so far and the word
+	 * 
+	 * @param state the current state
+	 * @return the edit distance
+	 */
+	public int distance(int[] state) {
+		return state[state.length - 1];
+	}
+
+	/**
+	 * String representation of the automaton
+	 */
+	@Override
+	public String toString() {
+		return "LevenshteinAutomaton [word=" + word + ", edits=" + edits + "]";
+	}
+}
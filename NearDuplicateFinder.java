@@ -0,0 +1,225 @@
+package edu.usfca.cs272;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class responsible for finding pages that are nearly the same as a page
+ * already indexed, such as mirrors or pages generated from the same template.
+ * Each page is fingerprinted with a 64-bit SimHash of its stems, where similar
+ * pages get fingerprints that differ in only a few bits, and a page is a near
+ * duplicate if its fingerprint is within a Hamming distance of one already
+ * seen.
+ *
+ * <p>
+ * Fingerprints are split into one more band than the distance, so two
+ * fingerprints within the distance must match exactly on at least one band.
+ * Each band has a table from its value to the fingerprints with that value, and
+ * only the fingerprints sharing a band with a new page are compared to it.
+ * Pages without any words are never near duplicates. Safe to share between
+ * threads.
+ *
+ * @author ryank
+ *
+ * @see WebIndexBuilder
+ */
+public class NearDuplicateFinder {
+
+	/**
+	 * the most bits two fingerprints can differ by to be near duplicates
+	 */
+	private final int distance;
+
+	/**
+	 * for each band, the fingerprints seen so far by the value of that band
+	 */
+	private final List<HashMap<Long, List<Fingerprint>>> bands;
+
+	/**
+	 * number of pages checked
+	 */
+	private final LongAdder checked;
+
+	/**
+	 * number of pages found to be near duplicates
+	 */
+	private final LongAdder duplicates;
+
+	/**
+	 * number of stems in the near duplicates, which did not need to be indexed
+	 */
+	private final LongAdder skipped;
+
+	/**
+	 * NearDuplicateFinder constructor
+	 *
+	 * @param distance the most bits two fingerprints can differ by to be near
+	 *                 duplicates, from 0 to 63
+	 */
+	public NearDuplicateFinder(int distance) {
+		this.distance = Math.max(0, Math.min(distance, Long.SIZE - 1));
+		this.bands = new ArrayList<>();
+		for (int i = 0; i <= this.distance; i++) {
+			bands.add(new HashMap<>());
+		}
+		this.checked = new LongAdder();
+		this.duplicates = new LongAdder();
+		this.skipped = new LongAdder();
+	}
+
+	/**
+	 * Checks whether a page is a near duplicate of a page seen before. If not, the
+	 * page is remembered so later pages are compared to it.
+	 *
+	 * @param stems    the stems of the page in order
+	 * @param location the location of the page
+	 * @return the location of the page it nearly duplicates, or null if it is new
+	 */
+	public String canonical(List<String> stems, String location) {
+		checked.increment();
+		if (stems.isEmpty()) {
+			return null;
+		}
+		long fingerprint = fingerprint(stems);
+		synchronized (bands) {
+			for (int i = 0; i < bands.size(); i++) {
+				List<Fingerprint> bucket = bands.get(i).get(band(fingerprint, i));
+				if (bucket != null) {
+					for (Fingerprint seen : bucket) {
+						if (Long.bitCount(seen.value ^ fingerprint) <= distance) {
+							duplicates.increment();
+							skipped.add(stems.size());
+							return seen.location;
+						}
+					}
+				}
+			}
+			Fingerprint added = new Fingerprint(fingerprint, location);
+			for (int i = 0; i < bands.size(); i++) {
+				bands.get(i).computeIfAbsent(band(fingerprint, i), value -> new ArrayList<>()).add(added);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the value of a band of a fingerprint
+	 *
+	 * @param fingerprint the fingerprint
+	 * @param band        which band
+	 * @return the bits of the band
+	 */
+	private long band(long fingerprint, int band) {
+		int start = band * Long.SIZE / bands.size();
+		int bits = (band + 1) * Long.SIZE / bands.size() - start;
+		return bits == Long.SIZE ? fingerprint : (fingerprint >>> start) & ((1L << bits) - 1);
+	}
+
+	/**
+	 * Returns the SimHash fingerprint of a sequence of stems. Every stem votes on
+	 * each bit of the fingerprint by the matching bit of its own hash, and the
+	 * fingerprint keeps the bits with more votes for than against, so a change to
+	 * a few stems only flips the few bits with close votes.
+	 *
+	 * @param stems the stems to fingerprint
+	 * @return the fingerprint
+	 */
+	public static long fingerprint(List<String> stems) {
+		int[] votes = new int[Long.SIZE];
+		for (String stem : stems) {
+			long hash = hash(stem);
+			for (int bit = 0; bit < Long.SIZE; bit++) {
+				votes[bit] += ((hash >>> bit) & 1) != 0 ? 1 : -1;
+			}
+		}
+		long fingerprint = 0;
+		for (int bit = 0; bit < Long.SIZE; bit++) {
+			if (votes[bit] > 0) {
+				fingerprint |= 1L << bit;
+			}
+		}
+		return fingerprint;
+	}
+
+	/**
+	 * Returns a 64-bit hash of a stem, using 64-bit FNV-1a over its characters
+	 * followed by the SplitMix64 finalizer so every bit is equally likely
+	 *
+	 * @param stem the stem to hash
+	 * @return the hash of the stem
+	 */
+	private static long hash(String stem) {
+		long hash = 0xCBF29CE484222325L;
+		for (int i = 0; i < stem.length(); i++) {
+			hash = (hash ^ stem.charAt(i)) * 0x100000001B3L;
+		}
+		hash = (hash ^ (hash >>> 30)) * 0xBF58476D1CE4E5B9L;
+		hash = (hash ^ (hash >>> 27)) * 0x94D049BB133111EBL;
+		return hash ^ (hash >>> 31);
+	}
+
+	/**
+	 * Returns the number of pages checked
+	 *
+	 * @return the number of pages checked
+	 */
+	public long getChecked() {
+		return checked.sum();
+	}
+
+	/**
+	 * Returns the number of pages found to be near duplicates
+	 *
+	 * @return the number of near duplicates
+	 */
+	public long getDuplicates() {
+		return duplicates.sum();
+	}
+
+	/**
+	 * Returns the number of stems in the near duplicates, which is how many
+	 * postings were not indexed
+	 *
+	 * @return the number of stems skipped
+	 */
+	public long getSkipped() {
+		return skipped.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "NearDuplicateFinder: " + getDuplicates() + " of " + getChecked() + " pages within " + distance
+				+ " bits of an earlier page (" + getSkipped() + " postings not indexed)";
+	}
+
+	/**
+	 * the fingerprint of a page that was indexed
+	 *
+	 * @author ryank
+	 *
+	 */
+	private static class Fingerprint {
+		/**
+		 * the fingerprint
+		 */
+		private final long value;
+
+		/**
+		 * the location of the page
+		 */
+		private final String location;
+
+		/**
+		 * constructor
+		 *
+		 * @param value    the fingerprint
+		 * @param location the location of the page
+		 */
+		public Fingerprint(long value, String location) {
+			this.value = value;
+			this.location = location;
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package edu.usfca.cs272;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Class responsible for finding the words that match a wildcard pattern such as
+ * {@code *ing} or {@code con*ion} without scanning every word. Every rotation
+ * of each word with an end marker appended is kept in sorted order, so
+ * {@code con*ion} becomes the prefix {@code ion$con} and {@code *ing} becomes
+ * the prefix {@code ing$}. Patterns with more than one wildcard look up their
+ * first and last pieces and then check the matches against the whole pattern,
+ * except patterns that start and end with a wildcard such as {@code *ati*on*},
+ * which look up their longest piece instead, since every rotation starting
+ * with a piece comes from a word containing it.
+ * 
+ * <p>
+ * A word of n characters has n + 1 rotations of n + 1 characters each, so the
+ * rotations take about (n + 1)^2 / n times as many characters as the words
+ * themselves, plus one sorted set entry per rotation instead of one per word.
+ * This is why the index is only built once the first wildcard search needs it.
+ * 
+ * @author ryank
+ *
+ */
+public class PermutermIndex {
+
+	/**
+	 * marks the end of a word in its rotations; words only contain letters
+	 */
+	public static final char END = '$';
+
+	/**
+	 * the wildcard character
+	 */
+	public static final char WILDCARD = '*';
+
+	/**
+	 * every rotation of every word
+	 */
+	private final TreeSet<String> rotations;
+
+	/**
+	 * number of words in the index
+	 */
+	private int words;
+
+	/**
+	 * number of characters across the words in the index
+	 */
+	private long characters;
+
+	/**
+	 * number of characters across the rotations in the index
+	 */
+	private long rotated;
+
+	/**
+	 * PermutermIndex constructor
+	 * 
+	 * @param words the words to index
+	 */
+	public PermutermIndex(Collection<String> words) {
+		this.rotations = new TreeSet<>();
+		for (String word : words) {
+			add(word);
+		}
+	}
+
+	/**
+	 * Adds the rotations of a word
+	 * 
+	 * @param word the word to add
+	 */
+	public final void add(String word) {
+		String marked = word + END;
+		if (rotations.add(marked)) {
+			for (int i = 1; i < marked.length(); i++) {
+				rotations.add(marked.substring(i) + marked.substring(0, i));
+			}
+			words++;
+			characters += word.length();
+			rotated += (long) marked.length() * marked.length();
+		}
+	}
+
+	/**
+	 * Removes the rotations of a word
+	 * 
+	 * @param word the word to remove
+	 */
+	public void remove(String word) {
+		String marked = word + END;
+		if (rotations.remove(marked)) {
+			for (int i = 1; i < marked.length(); i++) {
+				rotations.remove(marked.substring(i) + marked.substring(0, i));
+			}
+			words--;
+			characters -= word.length();
+			rotated -= (long) marked.length() * marked.length();
+		}
+	}
+
+	/**
+	 * Finds the words matching a wildcard pattern
+	 * 
+	 * @param pattern the pattern, where each {@code *} matches any characters
+	 * @return the matching words in sorted order
+	 */
+	public List<String> matches(String pattern) {
+		int first = pattern.indexOf(WILDCARD);
+		int last = pattern.lastIndexOf(WILDCARD);
+
+		if (first < 0) {
+			return rotations.contains(pattern + END) ? List.of(pattern) : List.of();
+		}
+
+		String prefix = pattern.substring(last + 1) + END + pattern.substring(0, first);
+		if (prefix.length() == 1) {
+			prefix = longestPiece(pattern);
+		}
+		TreeSet<String> matches = new TreeSet<>();
+		for (String rotation : rotations.tailSet(prefix)) {
+			if (!rotation.startsWith(prefix)) {
+				break;
+			}
+			int end = rotation.indexOf(END);
+			String word = rotation.substring(end + 1) + rotation.substring(0, end);
+			if (first == last || matches(pattern, word)) {
+				matches.add(word);
+			}
+		}
+		return new ArrayList<>(matches);
+	}
+
+	/**
+	 * Finds the longest piece of a pattern between its wildcards
+	 * 
+	 * @param pattern the pattern, where each {@code *} matches any characters
+	 * @return the longest piece, or an empty string if there are none
+	 */
+	private static String longestPiece(String pattern) {
+		String longest = "";
+		for (String piece : pattern.split("\\*")) {
+			if (piece.length() > longest.length()) {
+				longest = piece;
+			}
+		}
+		return longest;
+	}
+
+	/**
+	 * Checks a word against a whole wildcard pattern
+	 * 
+	 * @param pattern the pattern, where each {@code *} matches any characters
+	 * @param word    the word to check
+	 * @return true if the word matches the pattern
+	 */
+	public static boolean matches(String pattern, String word) {
+		String[] pieces = pattern.split("\\*", -1);
+		if (pieces.length == 1) {
+			return pattern.equals(word);
+		}
+
+		String head = pieces[0];
+		String tail = pieces[pieces.length - 1];
+		if (word.length() < head.length() + tail.length() || !word.startsWith(head) || !word.endsWith(tail)) {
+			return false;
+		}
+
+		int position = head.length();
+		int end = word.length() - tail.length();
+		for (int i = 1; i < pieces.length - 1; i++) {
+			int found = word.indexOf(pieces[i], position);
+			if (found < 0 || found + pieces[i].length() > end) {
+				return false;
+			}
+			position = found + pieces[i].length();
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of rotations in the index
+	 * 
+	 * @return the number of rotations
+	 */
+	public int size() {
+		return rotations.size();
+	}
+
+	/**
+	 * String representation of the index size compared to its words
+	 */
+	@Override
+	public String toString() {
+		return String.format("PermutermIndex [words=%d, rotations=%d, characters=%d (about %.1f times the words)]",
+				words, rotations.size(), rotated, characters == 0 ? 0 : rotated / (double) characters);
+	}
+}
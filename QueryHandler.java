@@ -1,7 +1,11 @@
 package edu.usfca.cs272;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -20,21 +24,137 @@ public class QueryHandler implements QueryHandlerInterface {
 	/**
 	 * data structure to store search results
 	 */
-	private final Map<String, List<InvertedIndex.SearchResult>> searchResults;
+	private final Map<String, InvertedIndex.SearchResultList> searchResults;
 
 	/**
 	 * inverted index object
 	 */
 	private final InvertedIndex invertedIndex;
 
+	/**
+	 * the maximum number of results to keep per query, or 0 to keep all of them
+	 */
+	private final int limit;
+
+	/**
+	 * the maximum edit distance of fuzzy matches, or 0 to not search fuzzily
+	 */
+	private final int edits;
+
+	/**
+	 * the number of query lines searched together when reading query files, or 0
+	 * to search one line at a time
+	 */
+	private final int batch;
+
 	/**
 	 * Constructor!!
 	 * 
 	 * @param index pass in my invertedIndex!!
 	 */
 	public QueryHandler(InvertedIndex index) {
-		searchResults = new TreeMap<String, List<InvertedIndex.SearchResult>>();
+		this(index, 0);
+	}
+
+	/**
+	 * Constructor that only keeps the best results of each query
+	 * 
+	 * @param index the invertedIndex to search
+	 * @param limit the maximum number of results to keep per query, or 0 to keep
+	 *              all of them
+	 */
+	public QueryHandler(InvertedIndex index, int limit) {
+		this(index, limit, 0);
+	}
+
+	/**
+	 * Constructor that can also search fuzzily, ignoring whether searches are exact
+	 * 
+	 * @param index the invertedIndex to search
+	 * @param limit the maximum number of results to keep per query, or 0 to keep
+	 *              all of them
+	 * @param edits the maximum edit distance of fuzzy matches, either 1 or 2, or 0
+	 *              to not search fuzzily
+	 */
+	public QueryHandler(InvertedIndex index, int limit, int edits) {
+		this(index, limit, edits, 0);
+	}
+
+	/**
+	 * Constructor that can also search query files in blocks of lines
+	 * 
+	 * @param index the invertedIndex to search
+	 * @param limit the maximum number of results to keep per query, or 0 to keep
+	 *              all of them
+	 * @param edits the maximum edit distance of fuzzy matches, either 1 or 2, or 0
+	 *              to not search fuzzily
+	 * @param batch the number of query lines searched together when reading query
+	 *              files, or 0 to search one line at a time
+	 */
+	public QueryHandler(InvertedIndex index, int limit, int edits, int batch) {
+		searchResults = new TreeMap<String, InvertedIndex.SearchResultList>();
 		this.invertedIndex = index;
+		this.limit = limit;
+		this.edits = edits;
+		this.batch = batch;
+	}
+
+	@Override
+	public void processQuery(Path path, boolean exact) throws IOException {
+		if (batch <= 0) {
+			QueryHandlerInterface.super.processQuery(path, exact);
+			return;
+		}
+		try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);) {
+			List<String> lines = new ArrayList<>();
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				lines.add(line);
+				if (lines.size() >= batch) {
+					processQueries(lines, exact);
+					lines.clear();
+				}
+			}
+			processQueries(lines, exact);
+		}
+	}
+
+	/**
+	 * This method searches a block of query lines together, so that the locations
+	 * of words shared by several queries are only walked once. Wildcard and fuzzy
+	 * queries are searched one at a time.
+	 * 
+	 * @param lines the lines to search on
+	 * @param exact boolean variable to determine whether or not the search will be
+	 *              exact
+	 * 
+	 * @see InvertedIndex#batchSearch(List, boolean, int)
+	 */
+	@Override
+	public void processQueries(List<String> lines, boolean exact) {
+		List<String> queryLines = new ArrayList<>();
+		List<TreeSet<String>> queries = new ArrayList<>();
+		// so repeats within the block are only searched once
+		Set<String> claimed = new TreeSet<>();
+		for (String line : lines) {
+			if (edits > 0 || WordCleaner.isWildcard(line)) {
+				processQuery(line, exact);
+				continue;
+			}
+			TreeSet<String> uniqueStems = WordCleaner.uniqueStems(line);
+			if (!uniqueStems.isEmpty()) {
+				String queryLine = String.join(" ", uniqueStems);
+				if (!hasResults(queryLine) && claimed.add(queryLine)) {
+					queryLines.add(queryLine);
+					queries.add(uniqueStems);
+				}
+			}
+		}
+
+		var results = invertedIndex.batchSearch(queries, exact, limit);
+		for (int i = 0; i < queryLines.size(); i++) {
+			searchResults.put(queryLines.get(i), results.get(i));
+		}
 	}
 
 
@@ -47,23 +167,73 @@ public class QueryHandler implements QueryHandlerInterface {
 	 *              exact
 	 */
 	public void processQuery(String line, boolean exact) {
-		TreeSet<String> uniqueStems = WordCleaner.uniqueStems(line);
+		TreeSet<String> uniqueStems = WordCleaner.queryWords(line);
 		if (!uniqueStems.isEmpty()) {
 			String queryLine = String.join(" ", uniqueStems);
-			if (!searchResults.containsKey(queryLine)) {
-				searchResults.put(queryLine, invertedIndex.search(uniqueStems, exact));
+			if (!hasResults(queryLine)) {
+				searchResults.put(queryLine, search(line, uniqueStems, exact));
 			}
 		}
 	}
 
+	/**
+	 * This method checks whether a query already has complete results. Results of
+	 * a search that ran out of time stay in the map until a later search of the
+	 * same query replaces them, so the query is searched again whenever it comes
+	 * up.
+	 * 
+	 * @param queryLine the query
+	 * @return true if the query has complete results
+	 */
+	private boolean hasResults(String queryLine) {
+		InvertedIndex.SearchResultList results = searchResults.get(queryLine);
+		return results != null && !results.isTimedOut();
+	}
+
+	/**
+	 * This method picks the wildcard, fuzzy, exact, or partial search for a query
+	 * line
+	 * 
+	 * @param line       the line to search on
+	 * @param queryWords the parsed words of the line
+	 * @param exact      boolean variable to determine whether or not the search
+	 *                   will be exact
+	 * @return a list of search results
+	 */
+	private InvertedIndex.SearchResultList search(String line, TreeSet<String> queryWords, boolean exact) {
+		if (WordCleaner.isWildcard(line)) {
+			return invertedIndex.wildcardSearch(queryWords, limit);
+		}
+		return edits > 0 ? invertedIndex.fuzzySearch(queryWords, edits, limit)
+				: invertedIndex.search(queryWords, exact, limit);
+	}
+
+	@Override
+	public String explain(String line, boolean exact) {
+		TreeSet<String> queryWords = WordCleaner.queryWords(line);
+		if (queryWords.isEmpty()) {
+			return null;
+		}
+		if (WordCleaner.isWildcard(line)) {
+			return invertedIndex.explainWildcard(queryWords, limit);
+		}
+		return edits > 0 ? invertedIndex.explainFuzzy(queryWords, edits, limit)
+				: invertedIndex.explain(queryWords, exact, limit);
+	}
+
 	/**
 	 * This method calls the PrettyJSONWriter method to write the search results to
-	 * a file
+	 * a file. Queries whose search ran out of time keep the best results found so
+	 * far, with a warning that they are partial.
 	 * 
 	 * @param path the path to write to
 	 * @throws IOException throws an IOException
 	 */
 	public void searchResultsToJson(Path path) throws IOException {
+		long timedOut = searchResults.values().stream().filter(InvertedIndex.SearchResultList::isTimedOut).count();
+		if (timedOut > 0) {
+			System.err.printf("Warning: %d queries ran out of time and have partial results in %s.%n", timedOut, path);
+		}
 		PrettyJsonWriter.writeSearchResults(searchResults, path);
 	}
 
@@ -89,15 +259,19 @@ public class QueryHandler implements QueryHandlerInterface {
 	 * query
 	 * 
 	 * @param line the query you are getting results of
-	 * @return an unmodifiable view of the search result list!
+	 * @return a copy of the search result list, which says whether the search ran
+	 *         out of time
 	 */
-	public List<InvertedIndex.SearchResult> getResults(String line) {
-		TreeSet<String> uniqueStems = WordCleaner.uniqueStems(line);
+	public InvertedIndex.SearchResultList getResults(String line) {
+		TreeSet<String> uniqueStems = WordCleaner.queryWords(line);
 		if (!uniqueStems.isEmpty()) {
 			String queryLine = String.join(" ", uniqueStems);
-			return Collections.unmodifiableList(searchResults.get(queryLine));
+			InvertedIndex.SearchResultList results = searchResults.get(queryLine);
+			if (results != null) {
+				return new InvertedIndex.SearchResultList(results);
+			}
 		}
-		return Collections.emptyList();
+		return new InvertedIndex.SearchResultList();
 
 	}
 
@@ -52,6 +52,30 @@ public interface QueryHandlerInterface {
 	 */
 	public void processQuery(String line, boolean exact);
 
+	/**
+	 * This method processes a block of query lines, which implementations may
+	 * search together for throughput
+	 * 
+	 * @param lines the lines to search on
+	 * @param exact boolean variable to determine whether or not the search will be
+	 *              exact
+	 */
+	public default void processQueries(List<String> lines, boolean exact) {
+		for (String line : lines) {
+			processQuery(line, exact);
+		}
+	}
+
+	/**
+	 * This method describes how the search for a query line would be evaluated
+	 * 
+	 * @param line  the line to search on
+	 * @param exact boolean variable to determine whether or not the search will be
+	 *              exact
+	 * @return a description of the query plan, or null if the line has no words
+	 */
+	public String explain(String line, boolean exact);
+
 	
 	/**
 	 * This method returns an unmodifiable view of the search results map
@@ -62,12 +86,14 @@ public interface QueryHandlerInterface {
 	
 	/**
 	 * This method returns the list of search results associated with a specific
-	 * query
+	 * query, which also says whether the search ran out of time
 	 * 
 	 * @param line the query you are getting results of
-	 * @return an unmodifiable view of the search result list!
+	 * @return a copy of the search result list, empty if the query has none
+	 * 
+	 * @see InvertedIndex.SearchResultList#isTimedOut()
 	 */
-	public List<InvertedIndex.SearchResult> getResults(String line);
+	public InvertedIndex.SearchResultList getResults(String line);
 	
 	
 	
@@ -0,0 +1,681 @@
+package edu.usfca.cs272;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * Class responsible for building an inverted index too large to fit in memory
+ * by single-pass in-memory indexing (SPIMI). Files are indexed into an in-memory
+ * block until its postings reach the memory budget, then the block is written
+ * to disk as a run sorted by word and location and a new block is started. The
+ * runs are merged a word at a time straight into the JSON output, so memory use
+ * stays near the budget no matter how large the corpus is. If there are more
+ * runs than the budget has room to read at once, they are first merged in
+ * groups into fewer, larger runs. Only the word count of each location is kept
+ * in memory for the whole build.
+ *
+ * <p>
+ * Files larger than a fraction of the budget are indexed in ranges of lines, so
+ * even a single file larger than memory can be split across runs. The output
+ * is the same as building an {@link InvertedIndex} and writing it with
+ * {@link InvertedIndex#toJson(Path)} and {@link InvertedIndex#countsToJson(Path)}.
+ * Not thread safe.
+ *
+ * @author ryank
+ *
+ */
+public class SpimiIndexBuilder implements AutoCloseable {
+
+	/**
+	 * about how many bytes of memory each position takes in an in-memory block,
+	 * counting its boxed integer, tree node, and share of the maps above it
+	 */
+	public static final int BYTES_PER_POSITION = 64;
+
+	/**
+	 * about how many bytes of memory each word of a location takes in an
+	 * in-memory block, counting its maps, positions set, and share of the word's
+	 * own entries, which dominate for a large vocabulary
+	 */
+	public static final int BYTES_PER_POSTING = 256;
+
+	/**
+	 * the least number of bytes of a file to index at a time
+	 */
+	private static final long MIN_CHUNK = 1 << 16;
+
+	/**
+	 * the number of bytes each run is written and read with at once
+	 */
+	private static final int BUFFER = 1 << 16;
+
+	/**
+	 * the most bytes of memory the in-memory block should take
+	 */
+	private final long budget;
+
+	/**
+	 * the directory the runs are written to
+	 */
+	private final Path directory;
+
+	/**
+	 * the runs written so far, in order
+	 */
+	private final List<Path> runs;
+
+	/**
+	 * the word count of each location
+	 */
+	private final TreeMap<String, Integer> wordCounts;
+
+	/**
+	 * the in-memory block of the run being built
+	 */
+	private InvertedIndex block;
+
+	/**
+	 * the number of positions in the in-memory block
+	 */
+	private long positions;
+
+	/**
+	 * the number of words of each location in the in-memory block
+	 */
+	private long postings;
+
+	/**
+	 * the number of positions written to runs so far
+	 */
+	private long written;
+
+	/**
+	 * the number of run files created so far, used to name the next one
+	 */
+	private int created;
+
+	/**
+	 * SpimiIndexBuilder constructor, writing runs to a new temporary directory
+	 *
+	 * @param budget the most bytes of memory the in-memory block should take
+	 * @throws IOException if the temporary directory cannot be created
+	 */
+	public SpimiIndexBuilder(long budget) throws IOException {
+		this(budget, Files.createTempDirectory("spimi"));
+	}
+
+	/**
+	 * SpimiIndexBuilder constructor
+	 *
+	 * @param budget    the most bytes of memory the in-memory block should take
+	 * @param directory an existing directory to write the runs to
+	 */
+	public SpimiIndexBuilder(long budget, Path directory) {
+		this.budget = Math.max(budget, BYTES_PER_POSITION);
+		this.directory = directory;
+		this.runs = new ArrayList<>();
+		this.wordCounts = new TreeMap<>();
+		this.block = new InvertedIndex();
+		this.positions = 0;
+		this.postings = 0;
+		this.written = 0;
+		this.created = 0;
+	}
+
+	/**
+	 * This method indexes a text file, or every text file in a directory, writing
+	 * a run to disk whenever the in-memory block reaches the memory budget
+	 *
+	 * @param path the file or directory to index
+	 * @throws IOException if a file cannot be read or a run cannot be written
+	 */
+	public void build(Path path) throws IOException {
+		if (Files.isDirectory(path)) {
+			try (Stream<Path> files = FileFinder.textFiles(path)) {
+				Iterator<Path> iterator = files.iterator();
+				while (iterator.hasNext()) {
+					add(iterator.next());
+				}
+			}
+		} else {
+			add(path);
+		}
+		flush();
+	}
+
+	/**
+	 * This method indexes a single file into the in-memory block a range of lines
+	 * at a time, flushing the block between ranges once it is full
+	 *
+	 * @param path the file to index
+	 * @throws IOException if the file cannot be read or a run cannot be written
+	 */
+	private void add(Path path) throws IOException {
+		if (FileFinder.isArchive(path)) {
+			ArchiveReader.read(path, (location, bytes) -> {
+				InvertedIndex local = new InvertedIndex();
+				IndexBuilder.buildInvertedIndex(location, bytes, local);
+				add(local, location, 0);
+			});
+			return;
+		}
+		String location = path.toString();
+		long[] bounds = IndexBuilder.chunks(path, Math.max(MIN_CHUNK, budget / BYTES_PER_POSITION));
+		int offset = 0;
+		for (int i = 0; i + 1 < bounds.length; i++) {
+			InvertedIndex local = new InvertedIndex();
+			IndexBuilder.buildInvertedIndex(path, bounds[i], bounds[i + 1], local);
+			offset += add(local, location, offset);
+		}
+	}
+
+	/**
+	 * This method adds the local index of a range of a single location to the
+	 * in-memory block, flushing the block once it is full
+	 *
+	 * @param local    the local index of the range
+	 * @param location the location the range is from
+	 * @param offset   the number of words of the location before the range
+	 * @return the number of words in the range
+	 * @throws IOException if a run cannot be written
+	 */
+	private int add(InvertedIndex local, String location, int offset) throws IOException {
+		int words = local.getFilesTotalWords(location);
+		if (words == 0) {
+			return 0;
+		}
+		block.addAll(local, offset);
+		wordCounts.merge(location, words, Integer::sum);
+		positions += words;
+		postings += local.size();
+		if (positions * BYTES_PER_POSITION + postings * BYTES_PER_POSTING >= budget) {
+			flush();
+		}
+		return words;
+	}
+
+	/**
+	 * This method writes the in-memory block to disk as the next run, sorted by
+	 * word and then location, and starts a new block. Does nothing if the block
+	 * is empty.
+	 *
+	 * @throws IOException if the run cannot be written
+	 */
+	private void flush() throws IOException {
+		if (positions == 0) {
+			return;
+		}
+		Path run = nextRun();
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(run), BUFFER))) {
+			for (String word : block.getWords()) {
+				writeString(out, word);
+				out.writeInt(block.size(word));
+				for (String location : block.getLocations(word)) {
+					writeString(out, location);
+					out.writeInt(block.size(word, location));
+					int previous = 0;
+					for (int position : block.get(word, location)) {
+						writeVarInt(out, position - previous);
+						previous = position;
+					}
+				}
+			}
+		}
+		runs.add(run);
+		written += positions;
+		block = new InvertedIndex();
+		positions = 0;
+		postings = 0;
+	}
+
+	/**
+	 * Returns the path of a new run file
+	 *
+	 * @return the path of the next run
+	 */
+	private Path nextRun() {
+		return directory.resolve("run-" + created++ + ".bin");
+	}
+
+	/**
+	 * This method merges consecutive groups of runs into single runs until there
+	 * are few enough to read at once within the budget, keeping the runs in order
+	 *
+	 * @throws IOException if a run cannot be read or written
+	 */
+	private void mergeRuns() throws IOException {
+		// also few enough to stay well under the limit on open files
+		int fanIn = (int) Math.min(Math.max(2, budget / BUFFER), 1 << 10);
+		while (runs.size() > fanIn) {
+			List<Path> merged = new ArrayList<>();
+			for (int i = 0; i < runs.size(); i += fanIn) {
+				List<Path> group = runs.subList(i, Math.min(i + fanIn, runs.size()));
+				if (group.size() == 1) {
+					merged.add(group.get(0));
+					continue;
+				}
+				Path run = nextRun();
+				try {
+					merge(group, run);
+				}
+				catch (IOException e) {
+					Files.deleteIfExists(run);
+					throw e;
+				}
+				merged.add(run);
+			}
+			// only delete the merged runs once every group is written
+			for (Path run : runs) {
+				if (!merged.contains(run)) {
+					Files.delete(run);
+				}
+			}
+			runs.clear();
+			runs.addAll(merged);
+		}
+	}
+
+	/**
+	 * This method merges a group of runs into a single run. A location in more
+	 * than one run keeps an entry from each, in run order, so the merged run can
+	 * have the same location more than once in a row.
+	 *
+	 * @param group the runs to merge, in order
+	 * @param path  the path of the run to write
+	 * @throws IOException if a run cannot be read or written
+	 */
+	private static void merge(List<Path> group, Path path) throws IOException {
+		List<Run> open = new ArrayList<>();
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(path), BUFFER))) {
+			PriorityQueue<Run> queue = open(group, open);
+			List<Run> same = new ArrayList<>();
+			while (!queue.isEmpty()) {
+				String word = queue.peek().word;
+				same.clear();
+				int locations = 0;
+				while (!queue.isEmpty() && queue.peek().word.equals(word)) {
+					Run run = queue.poll();
+					locations += run.locations;
+					same.add(run);
+				}
+
+				writeString(out, word);
+				out.writeInt(locations);
+				for (Run run : same) {
+					run.nextLocation();
+				}
+				while (true) {
+					// the smallest location, from the earliest run if more have it
+					Run next = null;
+					for (Run run : same) {
+						if (run.location != null && (next == null || run.location.compareTo(next.location) < 0)) {
+							next = run;
+						}
+					}
+					if (next == null) {
+						break;
+					}
+					writeString(out, next.location);
+					out.writeInt(next.count);
+					for (int i = 0; i < next.count; i++) {
+						writeVarInt(out, readVarInt(next.in));
+					}
+					next.nextLocation();
+				}
+
+				for (Run run : same) {
+					if (run.nextWord()) {
+						queue.add(run);
+					}
+				}
+			}
+		}
+		finally {
+			for (Run run : open) {
+				run.in.close();
+			}
+		}
+	}
+
+	/**
+	 * Opens runs in order, queued by their first word and then their order
+	 *
+	 * @param paths the runs to open, in order
+	 * @param open  the list to add every opened run to, so they can be closed
+	 * @return the queue of runs that have a word
+	 * @throws IOException if a run cannot be opened or read
+	 */
+	private static PriorityQueue<Run> open(List<Path> paths, List<Run> open) throws IOException {
+		PriorityQueue<Run> queue = new PriorityQueue<>(
+				Comparator.comparing((Run run) -> run.word).thenComparingInt(run -> run.index));
+		for (int i = 0; i < paths.size(); i++) {
+			Run run = new Run(i, paths.get(i));
+			open.add(run);
+			if (run.nextWord()) {
+				queue.add(run);
+			}
+		}
+		return queue;
+	}
+
+	/**
+	 * This method merges the runs into the inverted index JSON, one word at a time
+	 *
+	 * @param path the path of the file to write to
+	 * @throws IOException if a run cannot be read or the file cannot be written
+	 *
+	 * @see PrettyJsonWriter#writeJSON(java.util.Map, Writer, int)
+	 */
+	public void toJson(Path path) throws IOException {
+		flush();
+		mergeRuns();
+		List<Run> open = new ArrayList<>();
+		try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+			PriorityQueue<Run> queue = open(runs, open);
+
+			writer.write("{");
+			List<Run> group = new ArrayList<>();
+			boolean first = true;
+			while (!queue.isEmpty()) {
+				// every run with the smallest word, in run order
+				String word = queue.peek().word;
+				group.clear();
+				while (!queue.isEmpty() && queue.peek().word.equals(word)) {
+					group.add(queue.poll());
+				}
+
+				if (!first) {
+					writer.write(",");
+				}
+				first = false;
+				writer.write("\n");
+				PrettyJsonWriter.writeQuote(word, writer, 1);
+				writer.write(": ");
+				writeLocations(group, writer);
+
+				for (Run run : group) {
+					if (run.nextWord()) {
+						queue.add(run);
+					}
+				}
+			}
+			PrettyJsonWriter.writeIndent("\n}", writer, 0);
+		}
+		finally {
+			for (Run run : open) {
+				run.in.close();
+			}
+		}
+	}
+
+	/**
+	 * This method merges and writes the locations of the current word of each run
+	 * in a group. A location in more than one run, or more than once in a row in a
+	 * merged run, was split between them, and the earlier entry has the earlier
+	 * positions.
+	 *
+	 * @param group  the runs with the current word, in run order
+	 * @param writer the writer to write to
+	 * @throws IOException if a run cannot be read or the writer fails
+	 */
+	private static void writeLocations(List<Run> group, Writer writer) throws IOException {
+		for (Run run : group) {
+			run.nextLocation();
+		}
+		writer.write("{");
+		boolean first = true;
+		while (true) {
+			String location = null;
+			for (Run run : group) {
+				if (run.location != null && (location == null || run.location.compareTo(location) < 0)) {
+					location = run.location;
+				}
+			}
+			if (location == null) {
+				break;
+			}
+
+			if (!first) {
+				writer.write(",");
+			}
+			first = false;
+			writer.write("\n");
+			PrettyJsonWriter.writeQuote(location, writer, 2);
+			writer.write(": [");
+			boolean firstPosition = true;
+			for (Run run : group) {
+				while (location.equals(run.location)) {
+					int position = 0;
+					for (int i = 0; i < run.count; i++) {
+						position += readVarInt(run.in);
+						writer.write(firstPosition ? "\n" : ",\n");
+						PrettyJsonWriter.writeIndent(Integer.toString(position), writer, 3);
+						firstPosition = false;
+					}
+					run.nextLocation();
+				}
+			}
+			writer.write("\n");
+			PrettyJsonWriter.writeIndent("]", writer, 2);
+		}
+		writer.write("\n");
+		PrettyJsonWriter.writeIndent("}", writer, 1);
+	}
+
+	/**
+	 * This method writes the word count of each location as JSON
+	 *
+	 * @param path the path of the file to write to
+	 * @throws IOException if the file cannot be written
+	 */
+	public void countsToJson(Path path) throws IOException {
+		PrettyJsonWriter.writeObject(wordCounts, path);
+	}
+
+	/**
+	 * Returns the word count of a location indexed so far
+	 *
+	 * @param location the path of the file
+	 * @return the word count, or 0 if the location has no words
+	 */
+	public int getFilesTotalWords(String location) {
+		return wordCounts.getOrDefault(location, 0);
+	}
+
+	/**
+	 * Returns the number of runs written to disk so far
+	 *
+	 * @return the number of runs
+	 */
+	public int getRuns() {
+		return runs.size();
+	}
+
+	/**
+	 * Deletes the runs and, if empty, the directory they were written to
+	 *
+	 * @throws IOException if a run cannot be deleted
+	 */
+	@Override
+	public void close() throws IOException {
+		for (Path run : runs) {
+			Files.deleteIfExists(run);
+		}
+		runs.clear();
+		try (Stream<Path> rest = Files.list(directory)) {
+			if (rest.findAny().isEmpty()) {
+				Files.delete(directory);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "SpimiIndexBuilder: " + runs.size() + " runs (" + written + " positions) in " + directory + ", "
+				+ positions + " positions in memory, budget " + budget + " bytes";
+	}
+
+	/**
+	 * Writes a string as its UTF-8 length and bytes, since words and paths can be
+	 * longer than {@link DataOutputStream#writeUTF(String)} allows
+	 *
+	 * @param out    the stream to write to
+	 * @param string the string to write
+	 * @throws IOException if the stream fails
+	 */
+	private static void writeString(DataOutputStream out, String string) throws IOException {
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(out, bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a string written by {@link #writeString(DataOutputStream, String)}
+	 *
+	 * @param in the stream to read from
+	 * @return the string
+	 * @throws IOException if the stream fails or ends early
+	 */
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[readVarInt(in)];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes a non-negative integer in as few bytes as it needs, seven bits at a
+	 * time, so the small gaps between sorted positions mostly take one byte
+	 *
+	 * @param out   the stream to write to
+	 * @param value the value to write
+	 * @throws IOException if the stream fails
+	 */
+	private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * Reads an integer written by {@link #writeVarInt(DataOutputStream, int)}
+	 *
+	 * @param in the stream to read from
+	 * @return the value
+	 * @throws IOException if the stream fails or ends early
+	 */
+	private static int readVarInt(DataInputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0;; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+	}
+
+	/**
+	 * Class responsible for reading a run back one word and location at a time
+	 *
+	 * @author ryank
+	 *
+	 */
+	private static class Run {
+
+		/**
+		 * the order the run was written in
+		 */
+		private final int index;
+
+		/**
+		 * the stream the run is read from
+		 */
+		private final DataInputStream in;
+
+		/**
+		 * the current word, or null once the run is finished
+		 */
+		private String word;
+
+		/**
+		 * the number of locations of the current word not read yet
+		 */
+		private int locations;
+
+		/**
+		 * the current location, or null once the word has no more
+		 */
+		private String location;
+
+		/**
+		 * the number of positions of the current location
+		 */
+		private int count;
+
+		/**
+		 * Run constructor
+		 *
+		 * @param index the order the run was written in
+		 * @param path  the path of the run
+		 * @throws IOException if the run cannot be opened
+		 */
+		private Run(int index, Path path) throws IOException {
+			this.index = index;
+			this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER));
+		}
+
+		/**
+		 * Moves to the next word of the run
+		 *
+		 * @return true if there is another word, false if the run is finished
+		 * @throws IOException if the run cannot be read
+		 */
+		private boolean nextWord() throws IOException {
+			try {
+				word = readString(in);
+			}
+			catch (EOFException e) {
+				word = null;
+				return false;
+			}
+			locations = in.readInt();
+			return true;
+		}
+
+		/**
+		 * Moves to the next location of the current word, setting the location to
+		 * null if there are no more
+		 *
+		 * @throws IOException if the run cannot be read
+		 */
+		private void nextLocation() throws IOException {
+			if (locations == 0) {
+				location = null;
+				return;
+			}
+			locations--;
+			location = readString(in);
+			count = in.readInt();
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package edu.usfca.cs272;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A work queue where every worker thread has its own deque of tasks and idle
+ * workers steal tasks from the others, instead of all workers sharing one
+ * queue and one lock. Tasks added by a task already running on a worker, like
+ * the subdirectories of a directory or the links of a page, go on that
+ * worker's own deque without waking every other worker. Built on a
+ * {@link ForkJoinPool} in FIFO mode, so tasks still start roughly in the order
+ * they were added.
+ *
+ * <p>
+ * Keeps the same contract as {@link WorkQueue}: {@link #finish()} waits for
+ * all pending work, {@link #join()} finishes and stops the workers, and after
+ * {@link #shutdown()} any unprocessed work is skipped but work in progress is
+ * not interrupted.
+ *
+ * @author ryank
+ *
+ */
+public class StealingWorkQueue implements WorkQueueInterface {
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
+	/**
+	 * the pool of workers and their deques
+	 */
+	private final ForkJoinPool pool;
+
+	/**
+	 * number of tasks added but not yet finished
+	 */
+	private final AtomicLong pending;
+
+	/** Used to signal that unprocessed work should be skipped. */
+	private volatile boolean shutdown;
+
+	/**
+	 * Starts a work queue with the default number of threads.
+	 *
+	 * @see #StealingWorkQueue(int)
+	 */
+	public StealingWorkQueue() {
+		this(WorkQueue.DEFAULT);
+	}
+
+	/**
+	 * Starts a work queue with the specified number of threads.
+	 *
+	 * @param threads number of worker threads; should be greater than 1
+	 */
+	public StealingWorkQueue(int threads) {
+		this.pool = new ForkJoinPool(threads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+		this.pending = new AtomicLong();
+		this.shutdown = false;
+
+		log.debug("Work-stealing queue initialized with {} worker threads.", threads);
+	}
+
+	/**
+	 * Adds a work (or task) request to the queue. When called from a worker, the
+	 * task goes on that worker's own deque, where an idle worker can steal it.
+	 *
+	 * @param task work request (in the form of a {@link Runnable} object)
+	 */
+	@Override
+	public void execute(Runnable task) {
+		pending.incrementAndGet();
+		try {
+			pool.execute(() -> run(task));
+		} catch (RejectedExecutionException e) {
+			// already shut down, so the work is skipped like any unprocessed work
+			log.debug("Work-stealing queue skipped work added after shutdown.");
+			decrement();
+		}
+	}
+
+	/**
+	 * Runs a task on a worker unless the queue has been shut down, and counts it
+	 * down afterwards
+	 *
+	 * @param task the task to run
+	 */
+	private void run(Runnable task) {
+		try {
+			if (!shutdown) {
+				log.trace("Work-stealing worker running work.");
+				task.run();
+			}
+		} catch (RuntimeException e) {
+			// catch runtime exceptions so the pending work is still counted down
+			System.err.printf("Warning: %s encountered an exception while running.%n", Thread.currentThread().getName());
+			log.catching(Level.DEBUG, e);
+		} finally {
+			decrement();
+		}
+	}
+
+	/**
+	 * Waits for all pending work (or tasks) to be finished. Does not terminate the
+	 * worker threads so that the work queue can continue to be used.
+	 */
+	@Override
+	public synchronized void finish() {
+		boolean interrupted = false;
+		while (pending.get() > 0) {
+			try {
+				this.wait();
+			} catch (InterruptedException e) {
+				// keeps waiting like the shared queue, restoring the interrupt after
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Counts down a finished task, waking anyone waiting in {@link #finish()}
+	 * once there is no pending work left. Only the last task takes the lock.
+	 */
+	private void decrement() {
+		if (pending.decrementAndGet() == 0) {
+			synchronized (this) {
+				this.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Similar to {@link Thread#join()}, waits for all the work to be finished and
+	 * the worker threads to terminate. The work queue cannot be reused after this
+	 * call completes.
+	 */
+	@Override
+	public void join() {
+		try {
+			finish();
+			shutdown();
+
+			while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+				log.debug("Waiting for worker threads to terminate...");
+			}
+
+			log.debug("All worker threads terminated.");
+		} catch (InterruptedException e) {
+			System.err.println("Warning: Work queue interrupted while joining.");
+			log.catching(Level.DEBUG, e);
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Asks the queue to shutdown. Any unprocessed work (or tasks) will not be
+	 * finished, but threads in-progress will not be interrupted.
+	 */
+	@Override
+	public void shutdown() {
+		shutdown = true;
+
+		log.debug("Work-stealing queue triggering shutdown...");
+		pool.shutdown();
+	}
+
+	/**
+	 * Returns the number of worker threads being used by the work queue.
+	 *
+	 * @return number of worker threads
+	 */
+	@Override
+	public int size() {
+		return pool.getParallelism();
+	}
+
+	@Override
+	public String toString() {
+		return "StealingWorkQueue: " + size() + " workers, " + pool.getStealCount() + " tasks stolen";
+	}
+}
@@ -2,6 +2,7 @@ package edu.usfca.cs272;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
 
@@ -21,12 +22,38 @@ public class ThreadSafeInvertedIndex extends InvertedIndex {
 	 * constructor
 	 */
 	public ThreadSafeInvertedIndex() {
+		this(0);
+	}
+
+	/**
+	 * constructor that searches broad queries in parallel
+	 * 
+	 * @param parallelThreshold number of locations a search must visit before its
+	 *                          words are split into ranges searched in parallel,
+	 *                          or 0 to always search on the calling thread
+	 */
+	public ThreadSafeInvertedIndex(int parallelThreshold) {
+		this(parallelThreshold, 0);
+	}
+
+	/**
+	 * constructor that also gives every search a time budget
+	 * 
+	 * @param parallelThreshold number of locations a search must visit before its
+	 *                          words are split into ranges searched in parallel,
+	 *                          or 0 to always search on the calling thread
+	 * @param timeout           how many milliseconds each search may take before
+	 *                          it stops and returns the best results found so far,
+	 *                          or 0 to never stop early
+	 */
+	public ThreadSafeInvertedIndex(int parallelThreshold, long timeout) {
+		super(parallelThreshold, timeout);
 		this.lock = new ReadWriteLock();
 	}
 
 
 	@Override
-	public List<SearchResult> exactSearch(Set<String> query) {
+	public SearchResultList exactSearch(Set<String> query) {
 		lock.read().lock();
 		try {
 			return super.exactSearch(query);
@@ -37,7 +64,7 @@ public class ThreadSafeInvertedIndex extends InvertedIndex {
 	}
 
 	@Override
-	public List<SearchResult> partialSearch(Set<String> query) {
+	public SearchResultList partialSearch(Set<String> query) {
 		lock.read().lock();
 		try {
 			return super.partialSearch(query);
@@ -47,6 +74,83 @@ public class ThreadSafeInvertedIndex extends InvertedIndex {
 		}
 	}
 
+	@Override
+	public SearchResultList topSearch(Set<String> query, boolean exact, int limit) {
+		lock.read().lock();
+		try {
+			return super.topSearch(query, exact, limit);
+		}
+		finally {
+			lock.read().unlock();
+		}
+	}
+
+	@Override
+	public SearchResultList fuzzySearch(Set<String> query, int edits, int limit) {
+		lock.read().lock();
+		try {
+			return super.fuzzySearch(query, edits, limit);
+		}
+		finally {
+			lock.read().unlock();
+		}
+	}
+
+	@Override
+	public String explainFuzzy(Set<String> query, int edits, int limit) {
+		lock.read().lock();
+		try {
+			return super.explainFuzzy(query, edits, limit);
+		}
+		finally {
+			lock.read().unlock();
+		}
+	}
+
+	@Override
+	public SearchResultList wildcardSearch(Set<String> patterns, int limit) {
+		lock.read().lock();
+		try {
+			return super.wildcardSearch(patterns, limit);
+		}
+		finally {
+			lock.read().unlock();
+		}
+	}
+
+	@Override
+	public String explainWildcard(Set<String> patterns, int limit) {
+		lock.read().lock();
+		try {
+			return super.explainWildcard(patterns, limit);
+		}
+		finally {
+			lock.read().unlock();
+		}
+	}
+
+	@Override
+	public List<SearchResultList> batchSearch(List<? extends Set<String>> queries, boolean exact, int limit) {
+		lock.read().lock();
+		try {
+			return super.batchSearch(queries, exact, limit);
+		}
+		finally {
+			lock.read().unlock();
+		}
+	}
+
+	@Override
+	public String explain(Set<String> query, boolean exact, int limit) {
+		lock.read().lock();
+		try {
+			return super.explain(query, exact, limit);
+		}
+		finally {
+			lock.read().unlock();
+		}
+	}
+
 	@Override
 	public void add(String word, String path, int position) {
 		lock.write().lock(); 
@@ -58,6 +162,39 @@ public class ThreadSafeInvertedIndex extends InvertedIndex {
 		}
 	}
 
+	@Override
+	public void addAlias(String canonical, String alias) {
+		lock.write().lock();
+		try {
+			super.addAlias(canonical, alias);
+		}
+		finally {
+			lock.write().unlock();
+		}
+	}
+
+	@Override
+	public Set<String> getAliases(String location) {
+		lock.read().lock();
+		try {
+			return super.getAliases(location);
+		}
+		finally {
+			lock.read().unlock();
+		}
+	}
+
+	@Override
+	public Set<String> getAliasLocations() {
+		lock.read().lock();
+		try {
+			return super.getAliasLocations();
+		}
+		finally {
+			lock.read().unlock();
+		}
+	}
+
 	@Override
 	public String toString() {
 		lock.read().lock();
@@ -114,6 +251,50 @@ public class ThreadSafeInvertedIndex extends InvertedIndex {
 		}
 	}
 
+	@Override
+	public void addAll(InvertedIndex local, int offset) {
+		lock.write().lock();
+		try {
+			super.addAll(local, offset);
+		}
+		finally {
+			lock.write().unlock();
+		}
+	}
+
+	@Override
+	public void updateMaxScores() {
+		lock.write().lock();
+		try {
+			super.updateMaxScores();
+		}
+		finally {
+			lock.write().unlock();
+		}
+	}
+
+	@Override
+	public void removeAll(Collection<String> locations) {
+		lock.write().lock();
+		try {
+			super.removeAll(locations);
+		}
+		finally {
+			lock.write().unlock();
+		}
+	}
+
+	@Override
+	public void update(Collection<String> removed, InvertedIndex local) {
+		lock.write().lock();
+		try {
+			super.update(removed, local);
+		}
+		finally {
+			lock.write().unlock();
+		}
+	}
+
 	@Override
 	public int size() {
 		lock.read().lock();
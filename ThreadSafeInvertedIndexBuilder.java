@@ -4,7 +4,9 @@ import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Thread safe inverted index builder!!!
@@ -13,7 +15,22 @@ import java.util.List;
  *
  */
 public class ThreadSafeInvertedIndexBuilder extends IndexBuilder {
-	
+
+	/**
+	 * about how many bytes of a large file each task indexes
+	 */
+	public static final long CHUNK_SIZE = 64L << 20;
+
+	/**
+	 * the most bytes of archive entries waiting to be indexed at once, past which
+	 * the thread reading an archive indexes its entries itself
+	 */
+	public static final long MAX_ENTRY_BYTES = 4 * CHUNK_SIZE;
+
+	/**
+	 * the bytes of archive entries waiting to be indexed
+	 */
+	private static final AtomicLong ENTRY_BYTES = new AtomicLong();
 
 	/**
 	 * This method builds the inverted index
@@ -23,15 +40,52 @@ public class ThreadSafeInvertedIndexBuilder extends IndexBuilder {
 	 * @param workQueue     the workQueue
 	 * @throws IOException this method throws an IO exception
 	 */
-	public static void build(Path path, ThreadSafeInvertedIndex invertedIndex, WorkQueue workQueue) throws IOException {
+	public static void build(Path path, ThreadSafeInvertedIndex invertedIndex, WorkQueueInterface workQueue) throws IOException {
+		build(path, invertedIndex, workQueue, CHUNK_SIZE);
+	}
+
+	/**
+	 * This method builds the inverted index, splitting files larger than the chunk
+	 * size into ranges of lines indexed in parallel. Directories are walked in
+	 * parallel on the same work queue, so each file starts indexing as soon as it
+	 * is found rather than after the whole walk.
+	 * 
+	 * @param path          the path
+	 * @param invertedIndex the inverted index you are creating
+	 * @param workQueue     the workQueue
+	 * @param chunkSize     about how many bytes of a large file each task indexes
+	 * @throws IOException this method throws an IO exception
+	 */
+	public static void build(Path path, ThreadSafeInvertedIndex invertedIndex, WorkQueueInterface workQueue, long chunkSize)
+			throws IOException {
+		build(path, invertedIndex, workQueue, chunkSize, null);
+	}
+
+	/**
+	 * This method builds the inverted index, only indexing the first of any files
+	 * with the same contents and recording the rest as its aliases
+	 * 
+	 * @param path          the path
+	 * @param invertedIndex the inverted index you are creating
+	 * @param workQueue     the workQueue
+	 * @param chunkSize     about how many bytes of a large file each task indexes
+	 * @param deduplicator  the files seen so far, or null to index every file
+	 * @throws IOException this method throws an IO exception
+	 */
+	public static void build(Path path, ThreadSafeInvertedIndex invertedIndex, WorkQueueInterface workQueue, long chunkSize,
+			Deduplicator deduplicator) throws IOException {
 		try {
 			if (Files.isDirectory(path)) {
-				List<Path> allTextFiles = FileFinder.getAllTextFiles(path);
-				for (Path file : allTextFiles) {
-					workQueue.execute(new Task(file, invertedIndex));
-				}
+				FileFinder.findTextFiles(path, workQueue, file -> {
+					try {
+						execute(file, invertedIndex, workQueue, chunkSize, deduplicator);
+					}
+					catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
 			} else {
-				workQueue.execute(new Task(path, invertedIndex));
+				execute(path, invertedIndex, workQueue, chunkSize, deduplicator);
 			}
 		}
 		finally {
@@ -39,6 +93,157 @@ public class ThreadSafeInvertedIndexBuilder extends IndexBuilder {
 		}
 	}
 
+	/**
+	 * This method adds the tasks to index a file, one for the whole file unless it
+	 * is larger than the chunk size. Archives are read by a task of their own,
+	 * which adds a task for each text entry.
+	 * 
+	 * @param path          the path of the file
+	 * @param invertedIndex the inverted index you are creating
+	 * @param workQueue     the workQueue
+	 * @param chunkSize     about how many bytes of a large file each task indexes
+	 * @param deduplicator  the files seen so far, or null to index every file
+	 * @throws IOException this method throws an IO exception
+	 */
+	private static void execute(Path path, ThreadSafeInvertedIndex invertedIndex, WorkQueueInterface workQueue,
+			long chunkSize, Deduplicator deduplicator) throws IOException {
+		if (FileFinder.isArchive(path)) {
+			workQueue.execute(new ArchiveTask(path, invertedIndex, workQueue));
+			return;
+		}
+		if (Files.size(path) <= chunkSize) {
+			workQueue.execute(new Task(path, invertedIndex, deduplicator));
+			return;
+		}
+		if (deduplicator != null) {
+			Path canonical = deduplicator.canonical(path);
+			if (canonical != null) {
+				invertedIndex.addAlias(canonical.toString(), path.toString());
+				return;
+			}
+		}
+		long[] chunks = IndexBuilder.chunks(path, chunkSize);
+		ChunkedFile file = new ChunkedFile(path, invertedIndex, chunks.length - 1);
+		for (int i = 0; i < chunks.length - 1; i++) {
+			workQueue.execute(new ChunkTask(file, i, chunks[i], chunks[i + 1]));
+		}
+	}
+
+	/**
+	 * task class to read an archive, adding a task for each text entry
+	 * 
+	 * @author ryank
+	 *
+	 */
+	private static class ArchiveTask implements Runnable {
+
+		/**
+		 * path of the archive
+		 */
+		private final Path path;
+
+		/**
+		 * the invertedIndex to build
+		 */
+		private final ThreadSafeInvertedIndex invertedIndex;
+
+		/**
+		 * the work queue to index entries on
+		 */
+		private final WorkQueueInterface workQueue;
+
+		/**
+		 * constructor
+		 * 
+		 * @param path          path of the archive
+		 * @param invertedIndex the invertedIndex to build
+		 * @param workQueue     the work queue to index entries on
+		 */
+		public ArchiveTask(Path path, ThreadSafeInvertedIndex invertedIndex, WorkQueueInterface workQueue) {
+			this.path = path;
+			this.invertedIndex = invertedIndex;
+			this.workQueue = workQueue;
+		}
+
+		@Override
+		public void run() {
+			try {
+				ArchiveReader.read(path, (location, bytes) -> {
+					if (ENTRY_BYTES.addAndGet(bytes.length) <= MAX_ENTRY_BYTES) {
+						workQueue.execute(new EntryTask(location, bytes, invertedIndex));
+						return;
+					}
+					// too much is waiting already, so index this entry before reading more
+					ENTRY_BYTES.addAndGet(-bytes.length);
+					InvertedIndex local = new InvertedIndex();
+					try {
+						IndexBuilder.buildInvertedIndex(location, bytes, local);
+						invertedIndex.addAll(local);
+					}
+					catch (IOException e) {
+						System.err.printf("Warning: could not index %s.%n", location);
+					}
+				});
+			}
+			catch (IOException e) {
+				// entries read before the error are still indexed
+				System.err.printf("Warning: could not read all of %s.%n", path);
+			}
+		}
+	}
+
+	/**
+	 * task class to index an entry of an archive
+	 * 
+	 * @author ryank
+	 *
+	 */
+	private static class EntryTask implements Runnable {
+
+		/**
+		 * location of the entry
+		 */
+		private final String location;
+
+		/**
+		 * the bytes of the entry
+		 */
+		private final byte[] bytes;
+
+		/**
+		 * the invertedIndex to build
+		 */
+		private final ThreadSafeInvertedIndex invertedIndex;
+
+		/**
+		 * constructor
+		 * 
+		 * @param location      location of the entry
+		 * @param bytes         the bytes of the entry
+		 * @param invertedIndex the invertedIndex to build
+		 */
+		public EntryTask(String location, byte[] bytes, ThreadSafeInvertedIndex invertedIndex) {
+			this.location = location;
+			this.bytes = bytes;
+			this.invertedIndex = invertedIndex;
+		}
+
+		@Override
+		public void run() {
+			InvertedIndex local = new InvertedIndex();
+			try {
+				IndexBuilder.buildInvertedIndex(location, bytes, local);
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			finally {
+				ENTRY_BYTES.addAndGet(-bytes.length);
+			}
+			invertedIndex.addAll(local);
+		}
+	}
+
 	/**
 	 * task class!
 	 * 
@@ -56,22 +261,29 @@ public class ThreadSafeInvertedIndexBuilder extends IndexBuilder {
 		 */
 		private final ThreadSafeInvertedIndex invertedIndex; 
 
+		/**
+		 * the files seen so far, or null to index every file
+		 */
+		private final Deduplicator deduplicator;
+
 		/**
 		 * constructor
 		 * 
 		 * @param path          path of the file
 		 * @param invertedIndex the invertedIndex to build
+		 * @param deduplicator  the files seen so far, or null to index every file
 		 */
-		public Task(Path path, ThreadSafeInvertedIndex invertedIndex) {
+		public Task(Path path, ThreadSafeInvertedIndex invertedIndex, Deduplicator deduplicator) {
 			this.path = path;
 			this.invertedIndex = invertedIndex;
+			this.deduplicator = deduplicator;
 		}
 
 		@Override
 		public void run() {
 				InvertedIndex local = new InvertedIndex();
 				try {
-					IndexBuilder.buildInvertedIndex(path, local);
+					IndexBuilder.buildInvertedIndex(path, local, deduplicator);
 				}
 				catch(IOException e) {
 					throw new UncheckedIOException(e);
@@ -81,4 +293,153 @@ public class ThreadSafeInvertedIndexBuilder extends IndexBuilder {
 
 	}
 
+	/**
+	 * a large file indexed in chunks, each merged into the inverted index as soon
+	 * as the chunks before it are, since the positions of its words depend on how
+	 * many words the chunks before it have. Only chunks finished ahead of an
+	 * earlier one are held, so memory stays bounded.
+	 * 
+	 * @author ryank
+	 *
+	 */
+	private static class ChunkedFile {
+		/**
+		 * path of the file
+		 */
+		private final Path path;
+
+		/**
+		 * the invertedIndex to build
+		 */
+		private final ThreadSafeInvertedIndex invertedIndex;
+
+		/**
+		 * the words of each chunk not merged yet, with positions starting at 1 in
+		 * every chunk
+		 */
+		private final InvertedIndex[] locals;
+
+		/**
+		 * the next chunk to merge
+		 */
+		private int next;
+
+		/**
+		 * the number of words in the chunks merged so far
+		 */
+		private int offset;
+
+		/**
+		 * whether a chunk could not be read, which leaves the file out
+		 */
+		private boolean failed;
+
+		/**
+		 * constructor
+		 * 
+		 * @param path          path of the file
+		 * @param invertedIndex the invertedIndex to build
+		 * @param chunks        the number of chunks
+		 */
+		public ChunkedFile(Path path, ThreadSafeInvertedIndex invertedIndex, int chunks) {
+			this.path = path;
+			this.invertedIndex = invertedIndex;
+			this.locals = new InvertedIndex[chunks];
+			this.next = 0;
+			this.offset = 0;
+			this.failed = false;
+		}
+
+		/**
+		 * records the words of a chunk, and merges every chunk that is next in line,
+		 * offsetting each by the words of the chunks before it. If a chunk could not
+		 * be read, the chunks already merged are removed again and the rest are
+		 * dropped, so the file is left out rather than indexed in part.
+		 * 
+		 * @param chunk the index of the chunk
+		 * @param local the words of the chunk, or null if it could not be read
+		 */
+		public synchronized void done(int chunk, InvertedIndex local) {
+			if (failed) {
+				return;
+			}
+			String location = path.toString();
+			if (local == null) {
+				failed = true;
+				Arrays.fill(locals, null);
+				if (next > 0) {
+					invertedIndex.removeAll(List.of(location));
+				}
+				return;
+			}
+			locals[chunk] = local;
+			while (next < locals.length && locals[next] != null) {
+				invertedIndex.addAll(locals[next], offset);
+				offset += locals[next].getFilesTotalWords(location);
+				locals[next] = null;
+				next++;
+			}
+		}
+	}
+
+	/**
+	 * task class to index one chunk of a large file
+	 * 
+	 * @author ryank
+	 *
+	 */
+	private static class ChunkTask implements Runnable {
+		/**
+		 * the file the chunk belongs to
+		 */
+		private final ChunkedFile file;
+
+		/**
+		 * the index of the chunk
+		 */
+		private final int chunk;
+
+		/**
+		 * the index of the first byte of the chunk
+		 */
+		private final long start;
+
+		/**
+		 * the index after the last byte of the chunk
+		 */
+		private final long end;
+
+		/**
+		 * constructor
+		 * 
+		 * @param file  the file the chunk belongs to
+		 * @param chunk the index of the chunk
+		 * @param start the index of the first byte of the chunk
+		 * @param end   the index after the last byte of the chunk
+		 */
+		public ChunkTask(ChunkedFile file, int chunk, long start, long end) {
+			this.file = file;
+			this.chunk = chunk;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public void run() {
+			// stays null unless the whole chunk is read, whatever goes wrong
+			InvertedIndex local = null;
+			try {
+				InvertedIndex chunkIndex = new InvertedIndex();
+				IndexBuilder.buildInvertedIndex(file.path, start, end, chunkIndex);
+				local = chunkIndex;
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			finally {
+				file.done(chunk, local);
+			}
+		}
+	}
+
 }
@@ -1,15 +1,26 @@
 package edu.usfca.cs272;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
 
-import edu.usfca.cs272.InvertedIndex.SearchResult;
+import edu.usfca.cs272.InvertedIndex.SearchResultList;
 
 
 /**
@@ -23,7 +34,7 @@ public class ThreadSafeQueryHandler implements QueryHandlerInterface {
 	/**
 	 * work queue member
 	 */
-	private final WorkQueue workQueue; 
+	private final WorkQueueInterface workQueue; 
 
 	/**
 	 * invertedIndex member
@@ -31,9 +42,43 @@ public class ThreadSafeQueryHandler implements QueryHandlerInterface {
 	private final ThreadSafeInvertedIndex threadSafeInvertedIndex;  
 
 	/**
-	 * searchResults member
+	 * searchResults member, where each query maps to the single computation of its
+	 * results shared by every task searching for it
 	 */
-	private final Map<String, List<ThreadSafeInvertedIndex.SearchResult>> searchResults;
+	private final ConcurrentSkipListMap<String, CompletableFuture<SearchResultList>> searchResults;
+
+	/**
+	 * the maximum number of results to keep per query, or 0 to keep all of them
+	 */
+	private final int limit;
+
+	/**
+	 * the maximum edit distance of fuzzy matches, or 0 to not search fuzzily
+	 */
+	private final int edits;
+
+	/**
+	 * the most query lines searched per task when reading query files, or 0 to
+	 * search one line per task
+	 */
+	private final int batch;
+
+	/**
+	 * about how long each batch of query lines should take to search, long enough
+	 * to make the work queue overhead negligible but short enough to keep every
+	 * worker busy until the end
+	 */
+	private static final long BATCH_NANOS = 2_000_000;
+
+	/**
+	 * total time spent searching batched query lines
+	 */
+	private final LongAdder batchNanos;
+
+	/**
+	 * total number of batched query lines searched
+	 */
+	private final LongAdder batchLines;
 
 	/**
 	 * constructor
@@ -41,10 +86,59 @@ public class ThreadSafeQueryHandler implements QueryHandlerInterface {
 	 * @param threadSafeInvertedIndex the invertedIndex member
 	 * @param workQueue     the workQueue member
 	 */
-	public ThreadSafeQueryHandler(ThreadSafeInvertedIndex threadSafeInvertedIndex, WorkQueue workQueue) {
+	public ThreadSafeQueryHandler(ThreadSafeInvertedIndex threadSafeInvertedIndex, WorkQueueInterface workQueue) {
+		this(threadSafeInvertedIndex, workQueue, 0);
+	}
+
+	/**
+	 * constructor that only keeps the best results of each query
+	 * 
+	 * @param threadSafeInvertedIndex the invertedIndex member
+	 * @param workQueue     the workQueue member
+	 * @param limit         the maximum number of results to keep per query, or 0
+	 *                      to keep all of them
+	 */
+	public ThreadSafeQueryHandler(ThreadSafeInvertedIndex threadSafeInvertedIndex, WorkQueueInterface workQueue, int limit) {
+		this(threadSafeInvertedIndex, workQueue, limit, 0);
+	}
+
+	/**
+	 * constructor that can also search fuzzily, ignoring whether searches are exact
+	 * 
+	 * @param threadSafeInvertedIndex the invertedIndex member
+	 * @param workQueue     the workQueue member
+	 * @param limit         the maximum number of results to keep per query, or 0
+	 *                      to keep all of them
+	 * @param edits         the maximum edit distance of fuzzy matches, either 1 or
+	 *                      2, or 0 to not search fuzzily
+	 */
+	public ThreadSafeQueryHandler(ThreadSafeInvertedIndex threadSafeInvertedIndex, WorkQueueInterface workQueue, int limit,
+			int edits) {
+		this(threadSafeInvertedIndex, workQueue, limit, edits, 0);
+	}
+
+	/**
+	 * constructor that can also search query files in batches of lines
+	 * 
+	 * @param threadSafeInvertedIndex the invertedIndex member
+	 * @param workQueue     the workQueue member
+	 * @param limit         the maximum number of results to keep per query, or 0
+	 *                      to keep all of them
+	 * @param edits         the maximum edit distance of fuzzy matches, either 1 or
+	 *                      2, or 0 to not search fuzzily
+	 * @param batch         the most query lines searched per task when reading
+	 *                      query files, or 0 to search one line per task
+	 */
+	public ThreadSafeQueryHandler(ThreadSafeInvertedIndex threadSafeInvertedIndex, WorkQueueInterface workQueue, int limit,
+			int edits, int batch) {
 		this.threadSafeInvertedIndex = threadSafeInvertedIndex;
 		this.workQueue = workQueue;
-		searchResults = new TreeMap<>();
+		this.limit = limit;
+		this.edits = edits;
+		this.batch = batch;
+		this.batchNanos = new LongAdder();
+		this.batchLines = new LongAdder();
+		searchResults = new ConcurrentSkipListMap<>();
 	}
 
 	/**
@@ -59,28 +153,232 @@ public class ThreadSafeQueryHandler implements QueryHandlerInterface {
 	public void processQuery(Path path, boolean exact)
 			throws IOException {
 		try{
-			QueryHandlerInterface.super.processQuery(path, exact);
+			if (batch > 0) {
+				processBatches(path, exact);
+			}
+			else {
+				QueryHandlerInterface.super.processQuery(path, exact);
+			}
 		}
 		finally{
 			workQueue.finish();
 		}
 	}
+
+	/**
+	 * Method to process query file in batches of lines, each searched by a single
+	 * task
+	 * 
+	 * @param path          the path where the query file lives
+	 * @param exact         boolean variable to determine whether or not the search
+	 *                      will be exact
+	 * @throws IOException throws an IOException
+	 */
+	private void processBatches(Path path, boolean exact) throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);) {
+			List<String> lines = new ArrayList<>();
+			int size = batchSize();
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				lines.add(line);
+				if (lines.size() >= size) {
+					workQueue.execute(new Task(lines, exact));
+					lines = new ArrayList<>();
+					size = batchSize();
+				}
+			}
+			if (!lines.isEmpty()) {
+				workQueue.execute(new Task(lines, exact));
+			}
+		}
+	}
+
+	/**
+	 * Returns how many query lines the next batch should have, based on how long
+	 * the lines searched so far took. Starts small so the first measurements come
+	 * back quickly.
+	 * 
+	 * @return the size of the next batch
+	 */
+	private int batchSize() {
+		long lines = batchLines.sum();
+		if (lines == 0) {
+			return Math.min(batch, 16);
+		}
+		long nanosPerLine = Math.max(1, batchNanos.sum() / lines);
+		return (int) Math.max(1, Math.min(batch, BATCH_NANOS / nanosPerLine));
+	}
 	
 	@Override
 	public void processQuery(String line, boolean exact) {
-		workQueue.execute(new Task(line, exact));
+		workQueue.execute(new Task(List.of(line), exact));
+	}
+
+	/**
+	 * Searches a query line on the work queue without blocking, completing the
+	 * returned future with its results
+	 * 
+	 * @param line  the line to search on
+	 * @param exact boolean variable to determine whether or not the search will be
+	 *              exact
+	 * @return a future completed with the results of the search
+	 * 
+	 * @see #searchAsync(String, boolean, Executor)
+	 */
+	public CompletableFuture<SearchResultList> searchAsync(String line, boolean exact) {
+		return searchAsync(line, exact, workQueue);
+	}
+
+	/**
+	 * Searches a query line on an executor without blocking, completing the
+	 * returned future with its results. The search claims its query before it
+	 * starts, like those of {@link #processQuery(String, boolean)}, so a query
+	 * that already has results or is being searched is not searched again unless
+	 * its search ran out of time; the caller gets a copy of the existing future
+	 * instead. Cancelling the future of the search that claimed the query, or
+	 * completing it any other way, stops it the next time it checks its time
+	 * budget, and a search that fails or is cancelled gives up its claim.
+	 * 
+	 * @param line     the line to search on
+	 * @param exact    boolean variable to determine whether or not the search will
+	 *                 be exact
+	 * @param executor the executor to run the search on
+	 * @return a future completed with the results of the search
+	 */
+	public CompletableFuture<SearchResultList> searchAsync(String line, boolean exact, Executor executor) {
+		TreeSet<String> queryWords = WordCleaner.queryWords(line);
+		if (queryWords.isEmpty()) {
+			return CompletableFuture.completedFuture(new SearchResultList());
+		}
+		String queryLine = String.join(" ", queryWords);
+
+		AsyncSearch search = new AsyncSearch(line, queryWords, exact);
+		while (!claimQuery(queryLine, search)) {
+			CompletableFuture<SearchResultList> existing = searchResults.get(queryLine);
+			if (existing != null) {
+				// a copy so that cancelling it does not cancel the search shared with others
+				return existing.copy();
+			}
+		}
+		search.whenComplete((results, e) -> {
+			if (e != null) {
+				searchResults.remove(queryLine, search);
+			}
+		});
+
+		try {
+			executor.execute(search);
+		}
+		catch (RejectedExecutionException e) {
+			search.completeExceptionally(e);
+		}
+		return search;
+	}
+
+	/**
+	 * This method picks the wildcard, fuzzy, exact, or partial search for a query
+	 * line
+	 * 
+	 * @param line       the line to search on
+	 * @param queryWords the parsed words of the line
+	 * @param exact      boolean variable to determine whether or not the search
+	 *                   will be exact
+	 * @return a list of search results
+	 */
+	private SearchResultList search(String line, TreeSet<String> queryWords, boolean exact) {
+		if (WordCleaner.isWildcard(line)) {
+			return threadSafeInvertedIndex.wildcardSearch(queryWords, limit);
+		}
+		return edits > 0 ? threadSafeInvertedIndex.fuzzySearch(queryWords, edits, limit)
+				: threadSafeInvertedIndex.search(queryWords, exact, limit);
+	}
+
+	@Override
+	public String explain(String line, boolean exact) {
+		TreeSet<String> queryWords = WordCleaner.queryWords(line);
+		if (queryWords.isEmpty()) {
+			return null;
+		}
+		if (WordCleaner.isWildcard(line)) {
+			return threadSafeInvertedIndex.explainWildcard(queryWords, limit);
+		}
+		return edits > 0 ? threadSafeInvertedIndex.explainFuzzy(queryWords, edits, limit)
+				: threadSafeInvertedIndex.explain(queryWords, exact, limit);
 	}
 
 	/**
 	 * This method calls the PrettyJSONWriter method to write the search results to
-	 * a file
+	 * a file. Queries whose search ran out of time keep the best results found so
+	 * far, with a warning that they are partial.
 	 * 
 	 * @param path the path to write to
 	 * @throws IOException throws an IOException
 	 */
 	public void searchResultsToJson(Path path) throws IOException {
-		synchronized(searchResults) {
-			PrettyJsonWriter.writeSearchResults(searchResults, path);
+		Map<String, SearchResultList> results = new TreeMap<>();
+		int timedOut = 0;
+		for (var entry : searchResults.entrySet()) {
+			SearchResultList result = join(entry.getValue());
+			if (result != null) {
+				results.put(entry.getKey(), result);
+				if (result.isTimedOut()) {
+					timedOut++;
+				}
+			}
+		}
+		if (timedOut > 0) {
+			System.err.printf("Warning: %d queries ran out of time and have partial results in %s.%n", timedOut, path);
+		}
+		PrettyJsonWriter.writeSearchResults(results, path);
+	}
+
+	/**
+	 * Waits for the results of a query to be computed
+	 * 
+	 * @param future the computation of the results
+	 * @return the results, or null if the computation failed or was cancelled
+	 */
+	private static SearchResultList join(CompletableFuture<SearchResultList> future) {
+		try {
+			return future.join();
+		}
+		catch (CompletionException | CancellationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Checks whether the results of a query are done but ran out of time, so the
+	 * query should be searched again
+	 * 
+	 * @param future the computation of the results
+	 * @return true if the search finished with incomplete results
+	 */
+	private static boolean isTimedOut(CompletableFuture<SearchResultList> future) {
+		return future.isDone() && !future.isCompletedExceptionally() && future.join().isTimedOut();
+	}
+
+	/**
+	 * Claims a query for a computation of its results. A query is claimed if it
+	 * has no results yet, its results ran out of time, or its last computation
+	 * failed, so that only the first task to claim it computes it.
+	 * 
+	 * @param queryLine the query
+	 * @param future the computation that will complete with its results
+	 * @return true if the query was claimed for the computation
+	 */
+	private boolean claimQuery(String queryLine, CompletableFuture<SearchResultList> future) {
+		while (true) {
+			CompletableFuture<SearchResultList> existing = searchResults.putIfAbsent(queryLine, future);
+			if (existing == null) {
+				return true;
+			}
+			if (!isTimedOut(existing) && !existing.isCompletedExceptionally()) {
+				return false;
+			}
+			if (searchResults.replace(queryLine, existing, future)) {
+				return true;
+			}
 		}
 	}
 
@@ -92,9 +390,9 @@ public class ThreadSafeQueryHandler implements QueryHandlerInterface {
 	 */
 	private class Task implements Runnable {		
 		/**
-		 * line to stem 
+		 * lines to stem 
 		 */
-		private final String line; 
+		private final List<String> lines; 
 	
 		/**
 		 * exact variable to either conduct exact or partial search
@@ -103,29 +401,105 @@ public class ThreadSafeQueryHandler implements QueryHandlerInterface {
 
 		/**
 		 * task constructor
-		 * @param line the query line to process
+		 * @param lines the query lines to process
 		 * @param exact exact var to conduct exact or partial search
 		 */
-		public Task(String line, boolean exact) {
-			this.line = line;
+		public Task(List<String> lines, boolean exact) {
+			this.lines = lines;
 			this.exact = exact;
 		}
 
 		@Override
 		public void run() {
+			long start = System.nanoTime();
+			RuntimeException failure = null;
+			List<String> queryLines = new ArrayList<>();
+			List<TreeSet<String>> queries = new ArrayList<>();
+			List<CompletableFuture<SearchResultList>> futures = new ArrayList<>();
+			for (String line : lines) {
+				// one bad line should not stop the rest of its batch
+				try {
+					if (lines.size() > 1 && edits == 0 && !WordCleaner.isWildcard(line)) {
+						claim(line, queryLines, queries, futures);
+					}
+					else {
+						process(line);
+					}
+				}
+				catch (RuntimeException e) {
+					failure = e;
+				}
+			}
+			if (!queries.isEmpty()) {
+				try {
+					var results = threadSafeInvertedIndex.batchSearch(queries, exact, limit);
+					for (int i = 0; i < futures.size(); i++) {
+						futures.get(i).complete(results.get(i));
+					}
+				}
+				catch (RuntimeException e) {
+					for (int i = 0; i < futures.size(); i++) {
+						searchResults.remove(queryLines.get(i), futures.get(i));
+						futures.get(i).completeExceptionally(e);
+					}
+					failure = e;
+				}
+			}
+			if (batch > 0) {
+				batchNanos.add(System.nanoTime() - start);
+				batchLines.add(lines.size());
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		}
+
+		/**
+		 * claims a plain query line so that it can be searched together with the
+		 * rest of the batch, sharing the locations of common words
+		 * 
+		 * @param line the query line to claim
+		 * @param queryLines the claimed query lines
+		 * @param queries the stems of the claimed query lines
+		 * @param futures the claimed futures, completed once the batch is searched
+		 * 
+		 * @see ThreadSafeInvertedIndex#batchSearch(List, boolean, int)
+		 */
+		private void claim(String line, List<String> queryLines, List<TreeSet<String>> queries,
+				List<CompletableFuture<SearchResultList>> futures) {
 			TreeSet<String> uniqueStems = WordCleaner.uniqueStems(line);
+			if (!uniqueStems.isEmpty()) {
+				String queryLine = String.join(" ", uniqueStems);
+				CompletableFuture<SearchResultList> future = new CompletableFuture<>();
+				if (claimQuery(queryLine, future)) {
+					queryLines.add(queryLine);
+					queries.add(uniqueStems);
+					futures.add(future);
+				}
+			}
+		}
+
+		/**
+		 * searches a single query line
+		 * @param line the query line to process
+		 */
+		private void process(String line) {
+			TreeSet<String> uniqueStems = WordCleaner.queryWords(line);
 			if(!uniqueStems.isEmpty()) {
 				String queryLine = String.join(" ", uniqueStems);
-				
-				synchronized(searchResults) {
-					if(searchResults.containsKey(queryLine)) {
-						return;
-					}
+
+				// only the first task to claim the query computes it
+				CompletableFuture<SearchResultList> future = new CompletableFuture<>();
+				if (!claimQuery(queryLine, future)) {
+					return;
+				}
+				try {
+					future.complete(search(line, uniqueStems, exact));
 				}
-				var local = threadSafeInvertedIndex.search(uniqueStems, exact);
-				
-				synchronized(searchResults) {
-					searchResults.put(queryLine, local);
+				catch (RuntimeException e) {
+					searchResults.remove(queryLine, future);
+					future.completeExceptionally(e);
+					throw e;
 				}
 			}
 			
@@ -133,7 +507,59 @@ public class ThreadSafeQueryHandler implements QueryHandlerInterface {
 
 	}
 
-	
+	/**
+	 * a search started by {@link ThreadSafeQueryHandler#searchAsync(String, boolean, Executor)}
+	 * that stops early once completed by anyone else, such as by being cancelled.
+	 * The thread running it is never interrupted, since that could break the read
+	 * lock the search holds.
+	 * 
+	 * @author ryank
+	 *
+	 */
+	private class AsyncSearch extends CompletableFuture<SearchResultList> implements Runnable {
+		/**
+		 * the line to search on
+		 */
+		private final String line;
+
+		/**
+		 * the parsed words of the line
+		 */
+		private final TreeSet<String> queryWords;
+
+		/**
+		 * exact variable to either conduct exact or partial search
+		 */
+		private final boolean exact;
+
+		/**
+		 * async search constructor
+		 * 
+		 * @param line       the line to search on
+		 * @param queryWords the parsed words of the line
+		 * @param exact      exact var to conduct exact or partial search
+		 */
+		public AsyncSearch(String line, TreeSet<String> queryWords, boolean exact) {
+			this.line = line;
+			this.queryWords = queryWords;
+			this.exact = exact;
+		}
+
+		@Override
+		public void run() {
+			if (isDone()) {
+				return;
+			}
+			try {
+				// stops once anyone else completes or cancels this search
+				complete(InvertedIndex.cancellable(this::isDone, () -> search(line, queryWords, exact)));
+			}
+			catch (RuntimeException e) {
+				completeExceptionally(e);
+			}
+		}
+	}
+
 	/**
 	 * This method returns an unmodifiable view of the search results map
 	 * 
@@ -147,19 +573,24 @@ public class ThreadSafeQueryHandler implements QueryHandlerInterface {
 	
 	/**
 	 * This method returns the list of search results associated with a specific
-	 * query
+	 * query, waiting for them if the query is still being searched
 	 * 
 	 * @param line the query you are getting results of
-	 * @return an unmodifiable view of the search result list!
+	 * @return a copy of the search result list, which says whether the search ran
+	 *         out of time
 	 */
 	@Override
-	public List<SearchResult> getResults(String line) {
-		TreeSet<String> uniqueStems = WordCleaner.uniqueStems(line);
+	public SearchResultList getResults(String line) {
+		TreeSet<String> uniqueStems = WordCleaner.queryWords(line);
 		if (!uniqueStems.isEmpty()) {
 			String queryLine = String.join(" ", uniqueStems);
-			return Collections.unmodifiableList(searchResults.get(queryLine));
+			var future = searchResults.get(queryLine);
+			SearchResultList results = future == null ? null : join(future);
+			if (results != null) {
+				return new SearchResultList(results);
+			}
 		}
-		return Collections.emptyList();
+		return new SearchResultList();
 	}
 
 
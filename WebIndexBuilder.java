@@ -5,6 +5,9 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Java Class that builds an inverted index from the web!
@@ -22,7 +25,7 @@ public class WebIndexBuilder {
 	/**
 	 * workQueue object
 	 */
-	private final WorkQueue workQueue;
+	private final WorkQueueInterface workQueue;
 
 	/**
 	 * starting url to build inverted index from
@@ -39,6 +42,34 @@ public class WebIndexBuilder {
 	 */
 	private final Set<URL> checkedLinks;
 
+	/**
+	 * finds pages nearly the same as a page already indexed, or null to index
+	 * every page
+	 */
+	private final NearDuplicateFinder nearDuplicateFinder;
+
+	/**
+	 * whether near duplicates are recorded as aliases of the page they duplicate
+	 * instead of being left out of the index
+	 */
+	private final boolean alias;
+
+	/**
+	 * starts a virtual thread for each page fetch, or null to fetch pages on the
+	 * work queue
+	 */
+	private final ThreadFactory fetchers;
+
+	/**
+	 * limits how many fetches are in flight at once on virtual threads
+	 */
+	private final Semaphore fetches;
+
+	/**
+	 * number of pages being fetched on virtual threads or waiting to be indexed
+	 */
+	private final AtomicInteger pending;
+
 	/**
 	 * el constructor
 	 * 
@@ -47,12 +78,59 @@ public class WebIndexBuilder {
 	 * @param seedUrl                 the base url to start crawling from
 	 * @param maxCrawls               the number of crawls to do
 	 */
-	public WebIndexBuilder(ThreadSafeInvertedIndex threadSafeInvertedIndex, WorkQueue workQueue, String seedUrl,
+	public WebIndexBuilder(ThreadSafeInvertedIndex threadSafeInvertedIndex, WorkQueueInterface workQueue, String seedUrl,
 			int maxCrawls) {
+		this(threadSafeInvertedIndex, workQueue, seedUrl, maxCrawls, null, false);
+	}
+
+	/**
+	 * constructor that skips pages nearly the same as a page already indexed
+	 * 
+	 * @param threadSafeInvertedIndex thread safe inverted index object
+	 * @param workQueue               work queue object
+	 * @param seedUrl                 the base url to start crawling from
+	 * @param maxCrawls               the number of crawls to do
+	 * @param nearDuplicateFinder     finds pages nearly the same as a page
+	 *                                already indexed, or null to index every page
+	 * @param alias                   whether near duplicates are recorded as
+	 *                                aliases of the page they duplicate instead of
+	 *                                being left out of the index
+	 */
+	public WebIndexBuilder(ThreadSafeInvertedIndex threadSafeInvertedIndex, WorkQueueInterface workQueue, String seedUrl,
+			int maxCrawls, NearDuplicateFinder nearDuplicateFinder, boolean alias) {
+		this(threadSafeInvertedIndex, workQueue, seedUrl, maxCrawls, nearDuplicateFinder, alias, 0);
+	}
+
+	/**
+	 * constructor that can fetch pages on virtual threads. Fetching mostly waits
+	 * on the network, so each fetch gets its own cheap virtual thread and many
+	 * can be in flight at once, while cleaning, stemming, and indexing the pages
+	 * stays on the bounded work queue.
+	 * 
+	 * @param threadSafeInvertedIndex thread safe inverted index object
+	 * @param workQueue               work queue object
+	 * @param seedUrl                 the base url to start crawling from
+	 * @param maxCrawls               the number of crawls to do
+	 * @param nearDuplicateFinder     finds pages nearly the same as a page
+	 *                                already indexed, or null to index every page
+	 * @param alias                   whether near duplicates are recorded as
+	 *                                aliases of the page they duplicate instead of
+	 *                                being left out of the index
+	 * @param fetches                 the most fetches in flight at once on
+	 *                                virtual threads, or 0 to fetch pages on the
+	 *                                work queue
+	 */
+	public WebIndexBuilder(ThreadSafeInvertedIndex threadSafeInvertedIndex, WorkQueueInterface workQueue, String seedUrl,
+			int maxCrawls, NearDuplicateFinder nearDuplicateFinder, boolean alias, int fetches) {
 		this.threadSafeInvertedIndex = threadSafeInvertedIndex;
 		this.workQueue = workQueue;
 		this.seedUrl = seedUrl;
 		this.maxCrawls = maxCrawls;
+		this.nearDuplicateFinder = nearDuplicateFinder;
+		this.alias = alias;
+		this.fetchers = fetches > 0 ? Thread.ofVirtual().name("Fetcher", 0).factory() : null;
+		this.fetches = fetches > 0 ? new Semaphore(fetches) : null;
+		this.pending = new AtomicInteger();
 		checkedLinks = new HashSet<>();
 	}
 
@@ -63,12 +141,53 @@ public class WebIndexBuilder {
 	 * @throws MalformedURLException throws MalformedURLException
 	 */
 	public void crawlWeb() throws MalformedURLException {
-		checkedLinks.add(new URL(seedUrl));
-		workQueue.execute(new Task(new URL(seedUrl)));
+		synchronized (checkedLinks) {
+			checkedLinks.add(new URL(seedUrl));
+		}
+		crawl(new URL(seedUrl));
+		if (fetchers != null) {
+			synchronized (pending) {
+				while (pending.get() > 0) {
+					try {
+						pending.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+			}
+		}
 		workQueue.finish();
 
 	}
 
+	/**
+	 * Queues a link to be fetched and indexed, on a virtual thread if there are
+	 * fetchers and on the work queue otherwise
+	 * 
+	 * @param link the link to crawl
+	 */
+	private void crawl(URL link) {
+		if (fetchers == null) {
+			workQueue.execute(new Task(link));
+		} else {
+			pending.incrementAndGet();
+			fetchers.newThread(new FetchTask(link)).start();
+		}
+	}
+
+	/**
+	 * Counts down a page fetched on a virtual thread, waking the crawl once there
+	 * are none left
+	 */
+	private void decrement() {
+		if (pending.decrementAndGet() == 0) {
+			synchronized (pending) {
+				pending.notifyAll();
+			}
+		}
+	}
+
 	/**
 	 * Recursive method that builds the invertedIndex from the web.
 	 * 
@@ -80,20 +199,47 @@ public class WebIndexBuilder {
 		if (html == null) {
 			return;
 		}
+		crawlWeb(base, html);
+	}
+
+	/**
+	 * Builds the invertedIndex from a page that has already been fetched, crawling
+	 * the links it finds
+	 * 
+	 * @param base the url of the page
+	 * @param html the html of the page
+	 */
+	public void crawlWeb(URL base, String html) {
 		html = HtmlCleaner.stripBlockElements(html);
 		ArrayList<URL> urlsFound = LinkFinder.listUrls(base, html);
-		for (URL link : urlsFound) {
-			// check if URL has not already been crawled or queued to be crawled && maxCrawl
-			if (maxCrawls > checkedLinks.size() && !checkedLinks.contains(link)) {
-				checkedLinks.add(link);
-				workQueue.execute(new Task(link));
+		ArrayList<URL> newLinks = new ArrayList<>();
+		synchronized (checkedLinks) {
+			for (URL link : urlsFound) {
+				// check if URL has not already been crawled or queued to be crawled && maxCrawl
+				if (maxCrawls > checkedLinks.size() && !checkedLinks.contains(link)) {
+					checkedLinks.add(link);
+					newLinks.add(link);
+				}
 			}
-
+		}
+		// queued outside the lock, since a full work queue may block or run the task here
+		for (URL link : newLinks) {
+			crawl(link);
 		}
 		html = HtmlCleaner.stripHtml(html);
+		ArrayList<String> stems = WordCleaner.listStems(html);
+		if (nearDuplicateFinder != null) {
+			String canonical = nearDuplicateFinder.canonical(stems, base.toString());
+			if (canonical != null) {
+				if (alias) {
+					threadSafeInvertedIndex.addAlias(canonical, base.toString());
+				}
+				return;
+			}
+		}
 		int position = 1;
 		ThreadSafeInvertedIndex local = new ThreadSafeInvertedIndex();
-		for (String word : WordCleaner.listStems(html)) {
+		for (String word : stems) {
 			local.add(word, base.toString(), position);
 			position++;
 		}
@@ -128,4 +274,65 @@ public class WebIndexBuilder {
 		}
 
 	}
+
+	/**
+	 * task that fetches a page on a virtual thread and then hands the page to the
+	 * work queue to be indexed. Nothing here holds a monitor while waiting on the
+	 * network, so the virtual thread never pins its carrier thread.
+	 * 
+	 * @author ryank
+	 *
+	 */
+	private class FetchTask implements Runnable {
+
+		/**
+		 * the URL to fetch
+		 */
+		private final URL link;
+
+		/**
+		 * constructor
+		 * 
+		 * @param link the URL to fetch
+		 */
+		public FetchTask(URL link) {
+			this.link = link;
+		}
+
+		@Override
+		public void run() {
+			// counted down here unless the page is handed to the work queue
+			boolean queued = false;
+			try {
+				String html = null;
+				fetches.acquire();
+				try {
+					// 3 redirects
+					html = HtmlFetcher.fetch(link, 3);
+				} finally {
+					fetches.release();
+				}
+
+				if (html != null) {
+					String page = html;
+					workQueue.execute(() -> {
+						try {
+							crawlWeb(link, page);
+						} finally {
+							decrement();
+						}
+					});
+					queued = true;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (RuntimeException e) {
+				System.err.printf("Warning: could not fetch %s.%n", link);
+			} finally {
+				if (!queued) {
+					decrement();
+				}
+			}
+		}
+	}
 }
@@ -10,7 +10,9 @@ import java.nio.file.Path;
 import java.text.Normalizer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Locale;
 import java.util.TreeSet;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 
 import opennlp.tools.stemmer.Stemmer;
@@ -31,6 +33,15 @@ public class WordCleaner {
 	/** Regular expression that matches non-alphabetic characters. **/
 	public static final Pattern CLEAN_REGEX = Pattern.compile("(?U)[^\\p{Alpha}\\p{Space}]+");
 
+	/** The default stemmer for English, shared by every thread stemming words. **/
+	public static final CachingStemmer STEMMER = new CachingStemmer(ENGLISH, 1 << 16);
+
+	/** The longest buffer each thread keeps between calls to tokenize. **/
+	private static final int MAX_BUFFER = 1 << 16;
+
+	/** Each thread's buffer for the word being tokenized. **/
+	private static final ThreadLocal<char[]> BUFFER = ThreadLocal.withInitial(() -> new char[256]);
+
 	/**
 	 * Cleans the text by removing any non-alphabetic characters (e.g. non-letters
 	 * like digits, punctuation, symbols, and diacritical marks like the umlaut) and
@@ -65,7 +76,90 @@ public class WordCleaner {
 	 * @see #parse(String)
 	 */
 	public static String[] parse(String text) {
-		return split(clean(text));
+		ArrayList<String> words = new ArrayList<>();
+		tokenize(text, words::add);
+		return words.toArray(new String[0]);
+	}
+
+	/**
+	 * Parses the text into clean words, passing each one to the action in order.
+	 * Produces the same words as {@link #split(String)} of {@link #clean(String)},
+	 * but ASCII text is handled in a single pass that copies each word into a
+	 * reused buffer instead of building a cleaned copy of the text and splitting
+	 * it with regular expressions. Text with any other characters still goes
+	 * through Unicode normalization.
+	 *
+	 * @param text  the text to clean and split
+	 * @param words the action to take on each word
+	 *
+	 * @see #clean(String)
+	 * @see #split(String)
+	 */
+	public static void tokenize(String text, Consumer<String> words) {
+		if (!isAscii(text)) {
+			for (String word : split(clean(text))) {
+				words.accept(word);
+			}
+			return;
+		}
+
+		char[] buffer = BUFFER.get();
+		if (buffer.length < text.length()) {
+			buffer = new char[text.length()];
+			if (buffer.length <= MAX_BUFFER) {
+				BUFFER.set(buffer);
+			}
+		}
+
+		int length = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c >= 'a' && c <= 'z') {
+				buffer[length++] = c;
+			}
+			else if (c >= 'A' && c <= 'Z') {
+				buffer[length++] = (char) (c + ('a' - 'A'));
+			}
+			else if (c == ' ' || (c >= '\t' && c <= '\r')) {
+				if (length > 0) {
+					words.accept(new String(buffer, 0, length));
+					length = 0;
+				}
+			}
+			// anything else is removed without splitting the word, like CLEAN_REGEX
+		}
+		if (length > 0) {
+			words.accept(new String(buffer, 0, length));
+		}
+	}
+
+	/**
+	 * Determines whether the text can be tokenized without Unicode normalization,
+	 * which is when it only has ASCII characters and the default locale lowercases
+	 * them to ASCII (Turkish and Azeri lowercase {@code I} to a dotless
+	 * {@code ı}).
+	 *
+	 * @param text the text to check
+	 * @return {@code true} if the text only needs ASCII cleaning
+	 */
+	private static boolean isAscii(String text) {
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) >= 0x80) {
+				return false;
+			}
+		}
+		return lowercasesAscii();
+	}
+
+	/**
+	 * Determines whether the default locale lowercases ASCII letters to ASCII
+	 * letters, which every locale but Turkish and Azeri does.
+	 *
+	 * @return {@code true} if ASCII letters can be lowercased by offset
+	 */
+	public static boolean lowercasesAscii() {
+		String language = Locale.getDefault().getLanguage();
+		return !language.equals("tr") && !language.equals("az");
 	}
 
 	/**
@@ -81,11 +175,7 @@ public class WordCleaner {
 	 * @see Collection#add(Object)
 	 */
 	public static void addStems(String line, Stemmer stemmer, Collection<String> stems) {
-		String[] parsedArr = parse(line);
-		for (String word : parsedArr) {
-			String stem = stemmer.stem(word).toString();
-			stems.add(stem);
-		}
+		tokenize(line, word -> stems.add(stemmer.stem(word).toString()));
 	}
 
 	/**
@@ -117,8 +207,7 @@ public class WordCleaner {
 	 * 
 	 */
 	public static ArrayList<String> listStems(String line) {
-		Stemmer stemmer = new SnowballStemmer(ENGLISH);
-		return listStems(line, stemmer);
+		return listStems(line, STEMMER);
 
 	}
 
@@ -137,7 +226,7 @@ public class WordCleaner {
 	 */
 	public static ArrayList<String> listStems(Path input) throws IOException {
 		ArrayList<String> parsedLines = new ArrayList<>();
-		Stemmer stemmer = new SnowballStemmer(ENGLISH);
+		Stemmer stemmer = STEMMER;
 		try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8);) {
 			String line = null;
 
@@ -180,9 +269,67 @@ public class WordCleaner {
 	 * @see #uniqueStems(String, Stemmer)
 	 */
 	public static TreeSet<String> uniqueStems(String line) {
-		Stemmer stemmer = new SnowballStemmer(ENGLISH);
-		return uniqueStems(line, stemmer);
+		return uniqueStems(line, STEMMER);
+
+	}
+
+	/**
+	 * Determines whether the line is a wildcard query.
+	 *
+	 * @param line the line to check
+	 * @return {@code true} if the line contains a {@code *} wildcard
+	 */
+	public static boolean isWildcard(String line) {
+		return line.indexOf(PermutermIndex.WILDCARD) >= 0;
+	}
+
+	/**
+	 * Parses the line into a set of unique, sorted wildcard patterns. Words with a
+	 * {@code *} wildcard are cleaned around their wildcards but not stemmed, since
+	 * stemming part of a word changes what it matches. The other words are cleaned
+	 * and stemmed as usual so they only match themselves. Wildcard words with
+	 * nothing left but wildcards once cleaned, like {@code *} or {@code -*}, are
+	 * dropped rather than matching every word.
+	 *
+	 * @param line the line of words to parse
+	 * @return a sorted set of unique wildcard patterns
+	 *
+	 * @see #clean(String)
+	 * @see #uniqueStems(String)
+	 */
+	public static TreeSet<String> wildcardPatterns(String line) {
+		TreeSet<String> patterns = new TreeSet<>();
+		Stemmer stemmer = STEMMER;
+		for (String word : split(line)) {
+			if (!isWildcard(word)) {
+				addStems(word, stemmer, patterns);
+				continue;
+			}
+			String[] pieces = word.split("\\*", -1);
+			for (int i = 0; i < pieces.length; i++) {
+				pieces[i] = clean(pieces[i]);
+			}
+			String pattern = String.join("*", pieces).replaceAll("\\*+", "*");
+			if (!pattern.equals("*")) {
+				patterns.add(pattern);
+			}
+		}
+		return patterns;
+	}
 
+	/**
+	 * Parses a query line into the words to search for, which are wildcard
+	 * patterns for wildcard queries and unique stems otherwise.
+	 *
+	 * @param line the query line to parse
+	 * @return a sorted set of unique query words
+	 *
+	 * @see #isWildcard(String)
+	 * @see #wildcardPatterns(String)
+	 * @see #uniqueStems(String)
+	 */
+	public static TreeSet<String> queryWords(String line) {
+		return isWildcard(line) ? wildcardPatterns(line) : uniqueStems(line);
 	}
 
 	/**
@@ -200,7 +347,7 @@ public class WordCleaner {
 	 */
 	public static TreeSet<String> uniqueStems(Path input) throws IOException {
 		TreeSet<String> treeSet = new TreeSet<>();
-		Stemmer stemmer = new SnowballStemmer(ENGLISH);
+		Stemmer stemmer = STEMMER;
 		try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8);) {
 			String line = null;
 
@@ -232,7 +379,7 @@ public class WordCleaner {
 	public static ArrayList<TreeSet<String>> listUniqueStems(Path input) throws IOException {
 		// test commit
 		ArrayList<TreeSet<String>> uniqueSortedStems = new ArrayList<TreeSet<String>>();
-		Stemmer stemmer = new SnowballStemmer(ENGLISH);
+		Stemmer stemmer = STEMMER;
 		try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8);) {
 			String line = null;
 			while ((line = reader.readLine()) != null) {
@@ -242,4 +389,4 @@ public class WordCleaner {
 		return uniqueSortedStems;
 
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -1,6 +1,12 @@
 package edu.usfca.cs272;
 
-import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
@@ -11,6 +17,17 @@ import org.apache.logging.log4j.Logger;
  * Brian Goetz. It is up to the user of this class to keep track of whether
  * there is any pending work remaining.
  *
+ * <p>
+ * No locks are taken to add, take, or count down tasks: the tasks are kept in
+ * a lock-free queue and the pending work in an atomic counter. A worker with
+ * nothing to do parks itself, and each new task unparks exactly one idle
+ * worker instead of waking them all.
+ *
+ * <p>
+ * The queue can be bounded so a fast producer cannot grow it without limit. A
+ * task added to a full queue is handled by the {@link Policy} of the queue, and
+ * the depth of the queue is tracked so the bound can be tuned.
+ *
  * @see <a href=
  *      "https://web.archive.org/web/20210126172022/https://www.ibm.com/developerworks/library/j-jtp0730/index.html">
  *      Java Theory and Practice: Thread Pools and Work Queues</a>
@@ -18,12 +35,46 @@ import org.apache.logging.log4j.Logger;
  * @author CS 272 Software Development (University of San Francisco)
  * @version Fall 2022
  */
-public class WorkQueue {
+public class WorkQueue implements WorkQueueInterface {
+	/**
+	 * What to do with a task added to a full queue
+	 *
+	 * @author ryank
+	 *
+	 */
+	public enum Policy {
+		/**
+		 * wait until there is room in the queue. A worker adding a task runs it
+		 * itself instead, since every worker waiting for room would leave no one to
+		 * make room.
+		 */
+		BLOCK,
+
+		/**
+		 * run the task on the thread adding it, which slows the producer down to the
+		 * pace of the workers
+		 */
+		CALLER_RUNS,
+
+		/**
+		 * reject the task with a {@link RejectedExecutionException}, counting it as
+		 * dropped. Only for callers that can handle a task never running, since
+		 * nothing else tells them.
+		 */
+		DROP
+	}
+
 	/** Workers that wait until work (or tasks) are available. */
 	private final Worker[] workers;
 
 	/** Queue of pending work (or tasks). */
-	private final LinkedList<Runnable> tasks;
+	private final ConcurrentLinkedQueue<Runnable> tasks;
+
+	/** Workers parked (or about to park) because there was no work. */
+	private final ConcurrentLinkedQueue<Worker> idle;
+
+	/** Threads parked in {@link #finish()} until the pending work is done. */
+	private final ConcurrentLinkedQueue<Thread> finishing;
 
 	/** Used to signal the workers should terminate. */
 	private volatile boolean shutdown;
@@ -37,7 +88,31 @@ public class WorkQueue {
 	/**
 	 * pending variable to keep track of pending work
 	 */
-	private int pending;
+	private final AtomicLong pending;
+
+	/** The most tasks waiting in the queue at once, or 0 for no limit. */
+	private final int capacity;
+
+	/** What to do with a task added to a full queue. */
+	private final Policy policy;
+
+	/** Room left in the queue, or null if it has no limit. */
+	private final Semaphore slots;
+
+	/** Number of tasks waiting in the queue. */
+	private final AtomicInteger queued;
+
+	/** The most tasks waiting in the queue at once so far. */
+	private final AtomicInteger peak;
+
+	/** Number of tasks that had to wait for room in the queue. */
+	private final LongAdder blocked;
+
+	/** Number of tasks run by the thread adding them. */
+	private final LongAdder callerRuns;
+
+	/** Number of tasks skipped because the queue was full. */
+	private final LongAdder dropped;
 
 	/**
 	 * Starts a work queue with the default number of threads.
@@ -54,10 +129,33 @@ public class WorkQueue {
 	 * @param threads number of worker threads; should be greater than 1
 	 */
 	public WorkQueue(int threads) {
-		this.tasks = new LinkedList<Runnable>();
+		this(threads, 0, Policy.BLOCK);
+	}
+
+	/**
+	 * Starts a work queue with the specified number of threads and a limit on how
+	 * many tasks can wait in the queue.
+	 *
+	 * @param threads  number of worker threads; should be greater than 1
+	 * @param capacity the most tasks waiting in the queue at once, or 0 for no
+	 *                 limit
+	 * @param policy   what to do with a task added to a full queue
+	 */
+	public WorkQueue(int threads, int capacity, Policy policy) {
+		this.capacity = Math.max(0, capacity);
+		this.policy = policy;
+		this.slots = this.capacity > 0 ? new Semaphore(this.capacity) : null;
+		this.queued = new AtomicInteger();
+		this.peak = new AtomicInteger();
+		this.blocked = new LongAdder();
+		this.callerRuns = new LongAdder();
+		this.dropped = new LongAdder();
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		this.idle = new ConcurrentLinkedQueue<Worker>();
+		this.finishing = new ConcurrentLinkedQueue<Thread>();
 		this.workers = new Worker[threads];
 		this.shutdown = false;
-		this.pending = 0;
+		this.pending = new AtomicLong();
 
 		// start the threads so they are waiting in the background
 		for (int i = 0; i < threads; i++) {
@@ -65,53 +163,103 @@ public class WorkQueue {
 			workers[i].start();
 		}
 
-		log.debug("Work queue initialized with {} worker threads.", workers.length);
+		log.debug("Work queue initialized with {} worker threads and capacity {}.", workers.length, this.capacity);
 	}
 
 	/**
 	 * Adds a work (or task) request to the queue. A worker thread will process this
-	 * request when available.
+	 * request when available. If the queue is full, the task is handled by the
+	 * policy of the queue instead.
 	 *
 	 * @param task work request (in the form of a {@link Runnable} object)
+	 * @throws RejectedExecutionException if the queue is full and its policy is
+	 *                                    {@link Policy#DROP}
 	 */
+	@Override
 	public void execute(Runnable task) {
-		increment();
-		synchronized (tasks) {
-			tasks.addLast(task);
-			tasks.notifyAll();
+		if (slots != null && !slots.tryAcquire()) {
+			if (policy == Policy.DROP) {
+				dropped.increment();
+				log.debug("Work queue full, dropped work.");
+				throw new RejectedExecutionException("Work queue full");
+			}
+			if (policy == Policy.CALLER_RUNS || isWorker()) {
+				callerRuns.increment();
+				runHere(task);
+				return;
+			}
+			blocked.increment();
+			slots.acquireUninterruptibly();
+		}
+
+		pending.incrementAndGet();
+		peak.accumulateAndGet(queued.incrementAndGet(), Math::max);
+		tasks.offer(task);
+
+		// a worker always checks for work again after being unparked
+		Worker worker = idle.poll();
+		if (worker != null) {
+			LockSupport.unpark(worker);
 		}
 	}
 
 	/**
-	 * Waits for all pending work (or tasks) to be finished. Does not terminate the
-	 * worker threads so that the work queue can continue to be used.
+	 * Runs a task on the thread adding it, counting it as pending work while it
+	 * runs. Any exception is left for the caller to handle.
+	 *
+	 * @param task the task to run
 	 */
-	public synchronized void finish() {
-		while (pending > 0) {
-			try {
-				this.wait();
-			} catch (InterruptedException e) {
-				Thread.currentThread().interrupt();
-			}
+	private void runHere(Runnable task) {
+		pending.incrementAndGet();
+		try {
+			log.trace("Work queue caller running work.");
+			task.run();
+		} finally {
+			decrement();
 		}
 	}
-	
-	
+
 	/**
-	 * decrement shared pending var
+	 * Checks whether the current thread is one of the workers of this queue
+	 *
+	 * @return true if called from a worker of this queue
 	 */
-	private synchronized void decrement() { 
-		pending--;
-		if(pending == 0) {
-			this.notifyAll();
+	private boolean isWorker() {
+		return Thread.currentThread() instanceof Worker worker && worker.getQueue() == this;
+	}
+
+	/**
+	 * Waits for all pending work (or tasks) to be finished. Does not terminate the
+	 * worker threads so that the work queue can continue to be used.
+	 */
+	@Override
+	public void finish() {
+		Thread current = Thread.currentThread();
+		boolean interrupted = false;
+
+		// registered before checking, so the last task cannot miss this thread
+		finishing.add(current);
+		while (pending.get() > 0) {
+			LockSupport.park(this);
+			interrupted |= Thread.interrupted();
+		}
+		finishing.remove(current);
+
+		if (interrupted) {
+			current.interrupt();
 		}
 	}
-	
+
 	/**
-	 * increment shared pending var
+	 * decrement shared pending var, unparking any threads waiting to finish once
+	 * there is no pending work left
 	 */
-	private synchronized void increment() { 
-		pending++;
+	private void decrement() {
+		if (pending.decrementAndGet() == 0) {
+			for (Thread thread : finishing) {
+				LockSupport.unpark(thread);
+			}
+		}
 	}
 
 	/**
@@ -119,6 +267,7 @@ public class WorkQueue {
 	 * the worker threads to terminate. The work queue cannot be reused after this
 	 * call completes.
 	 */
+	@Override
 	public void join() {
 		try {
 			finish();
@@ -140,13 +289,18 @@ public class WorkQueue {
 	 * Asks the queue to shutdown. Any unprocessed work (or tasks) will not be
 	 * finished, but threads in-progress will not be interrupted.
 	 */
+	@Override
 	public void shutdown() {
 		// safe to do unsynchronized due to volatile keyword
 		shutdown = true;
 
 		log.debug("Work queue triggering shutdown...");
-		synchronized (tasks) {
-			tasks.notifyAll();
+		for (Worker worker : workers) {
+			LockSupport.unpark(worker);
+		}
+		if (slots != null) {
+			// nothing will make room anymore, so let any blocked producers through
+			slots.release(Integer.MAX_VALUE / 2);
 		}
 	}
 
@@ -155,13 +309,79 @@ public class WorkQueue {
 	 *
 	 * @return number of worker threads
 	 */
+	@Override
 	public int size() {
 		return workers.length;
 	}
 
+	/**
+	 * Returns the most tasks that can wait in the queue at once.
+	 *
+	 * @return the capacity of the queue, or 0 if it has no limit
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of tasks waiting in the queue, not counting tasks being
+	 * run.
+	 *
+	 * @return the depth of the queue
+	 */
+	public int getQueued() {
+		return queued.get();
+	}
+
+	/**
+	 * Returns the most tasks that have waited in the queue at once.
+	 *
+	 * @return the peak depth of the queue
+	 */
+	public int getPeakQueued() {
+		return peak.get();
+	}
+
+	/**
+	 * Returns the number of tasks that had to wait for room in the queue.
+	 *
+	 * @return the number of blocked tasks
+	 */
+	public long getBlocked() {
+		return blocked.sum();
+	}
+
+	/**
+	 * Returns the number of tasks run by the thread adding them because the queue
+	 * was full.
+	 *
+	 * @return the number of tasks run by their caller
+	 */
+	public long getCallerRuns() {
+		return callerRuns.sum();
+	}
+
+	/**
+	 * Returns the number of tasks skipped because the queue was full.
+	 *
+	 * @return the number of dropped tasks
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "WorkQueue: " + size() + " workers, capacity " + (capacity > 0 ? capacity : "unbounded") + " ("
+				+ policy + "), " + getQueued() + " queued, peak " + getPeakQueued() + ", " + getBlocked() + " blocked, "
+				+ getCallerRuns() + " run by caller, " + getDropped() + " dropped";
+	}
+
 	/**
 	 * Waits until work (or a task) is available in the work queue. When work is
-	 * found, will remove the work from the queue and run it.
+	 * found, will remove the work from the queue and run it. With no work, the
+	 * worker adds itself to the idle workers, checks for work once more so it
+	 * cannot miss a task added in between, and parks.
 	 *
 	 * <p>
 	 * If a shutdown is detected, will exit instead of grabbing new work from the
@@ -176,28 +396,44 @@ public class WorkQueue {
 			setName("Worker" + getName());
 		}
 
+		/**
+		 * Returns the work queue this worker takes work from.
+		 *
+		 * @return the work queue of this worker
+		 */
+		private WorkQueue getQueue() {
+			return WorkQueue.this;
+		}
+
 		@Override
 		public void run() {
 			Runnable task = null;
 
 			try {
 				while (true) {
-					synchronized (tasks) {
-						while (tasks.isEmpty() && !shutdown) {
+					if (shutdown) {
+						log.debug("Worker detected shutdown...");
+						break;
+					}
+
+					task = tasks.poll();
+					if (task == null) {
+						idle.add(this);
+						if (tasks.isEmpty() && !shutdown) {
 							log.debug("Work queue worker waiting...");
-							tasks.wait();
+							LockSupport.park(this);
 						}
-
-						// exit while for one of two reasons:
-						// (a) queue has work, or (b) shutdown has been called
-
-						if (shutdown) {
-							log.debug("Worker detected shutdown...");
-							break;
-						} else {
-							log.debug("Worker found {} tasks...", tasks.size());
-							task = tasks.removeFirst();
+						idle.remove(this);
+						if (Thread.interrupted()) {
+							throw new InterruptedException();
 						}
+						continue;
+					}
+
+					// makes room for a producer waiting on a full queue
+					queued.decrementAndGet();
+					if (slots != null) {
+						slots.release();
 					}
 
 					try {
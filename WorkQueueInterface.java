@@ -0,0 +1,39 @@
+package edu.usfca.cs272;
+
+import java.util.concurrent.Executor;
+
+/**
+ * WorkQueue Interface! The contract every work queue keeps, so that the
+ * builders and handlers can run their tasks on any of them.
+ * 
+ * @author ryank
+ *
+ */
+public interface WorkQueueInterface extends Executor {
+
+	/**
+	 * Waits for all pending work (or tasks) to be finished. Does not terminate the
+	 * worker threads so that the work queue can continue to be used.
+	 */
+	public void finish();
+
+	/**
+	 * Similar to {@link Thread#join()}, waits for all the work to be finished and
+	 * the worker threads to terminate. The work queue cannot be reused after this
+	 * call completes.
+	 */
+	public void join();
+
+	/**
+	 * Asks the queue to shutdown. Any unprocessed work (or tasks) will not be
+	 * finished, but threads in-progress will not be interrupted.
+	 */
+	public void shutdown();
+
+	/**
+	 * Returns the number of worker threads being used by the work queue.
+	 *
+	 * @return number of worker threads
+	 */
+	public int size();
+}
@@ -0,0 +1,168 @@
+package edu.usfca.cs272;
+
+import static opennlp.tools.stemmer.snowball.SnowballStemmer.ALGORITHM.ENGLISH;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import opennlp.tools.stemmer.Stemmer;
+import opennlp.tools.stemmer.snowball.SnowballStemmer;
+
+/**
+ * Measures how many tokens per microsecond are stemmed through the shared
+ * {@link CachingStemmer} against a plain {@link SnowballStemmer}, both for
+ * indexing, where one stemmer stems every word of a file, and for query
+ * parsing, where the plain stemmer is created again for every line. Build with
+ * {@code mvn -P jmh package} and run with
+ * {@code java -jar target/benchmarks.jar StemmerBenchmark -p text=<directory>},
+ * where the directory holds the .txt and .text files to take words from.
+ *
+ * @author ryank
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StemmerBenchmark {
+
+	/**
+	 * the number of words each invocation stems
+	 */
+	private static final int TOKENS = 100_000;
+
+	/**
+	 * the number of words in each query line
+	 */
+	private static final int QUERY_WORDS = 4;
+
+	/**
+	 * the directory of text files to take words from
+	 */
+	@Param({ "." })
+	String text;
+
+	/**
+	 * the first words of the text files, in order
+	 */
+	private String[] words;
+
+	/**
+	 * the same words joined into query lines
+	 */
+	private String[] lines;
+
+	/**
+	 * Reads the words to stem
+	 *
+	 * @throws IOException if a text file could not be read
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		List<String> found = new ArrayList<>();
+		try (Stream<Path> paths = Files.walk(Path.of(text))) {
+			for (Path path : paths.filter(p -> FileFinder.isTextFile(p.toString())).sorted().toList()) {
+				for (String word : WordCleaner.parse(Files.readString(path, StandardCharsets.ISO_8859_1))) {
+					if (found.size() == TOKENS) {
+						break;
+					}
+					found.add(word);
+				}
+			}
+		}
+		if (found.size() < TOKENS) {
+			throw new IllegalStateException("Need " + TOKENS + " words of text under " + text + " but found " + found.size());
+		}
+		words = found.toArray(String[]::new);
+
+		lines = new String[TOKENS / QUERY_WORDS];
+		for (int i = 0; i < lines.length; i++) {
+			lines[i] = String.join(" ", found.subList(i * QUERY_WORDS, (i + 1) * QUERY_WORDS));
+		}
+	}
+
+	/**
+	 * Stems every word with one plain snowball stemmer
+	 *
+	 * @return the number of characters stemmed
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TOKENS)
+	public long indexSnowball() {
+		Stemmer stemmer = new SnowballStemmer(ENGLISH);
+		long characters = 0;
+		for (String word : words) {
+			characters += stemmer.stem(word).length();
+		}
+		return characters;
+	}
+
+	/**
+	 * Stems every word with the shared caching stemmer
+	 *
+	 * @return the number of characters stemmed
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TOKENS)
+	public long indexCached() {
+		long characters = 0;
+		for (String word : words) {
+			characters += WordCleaner.STEMMER.stem(word).length();
+		}
+		return characters;
+	}
+
+	/**
+	 * Parses every query line with a new plain snowball stemmer per line
+	 *
+	 * @return the number of unique stems found
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TOKENS)
+	public long querySnowball() {
+		long stems = 0;
+		for (String line : lines) {
+			TreeSet<String> unique = WordCleaner.uniqueStems(line, new SnowballStemmer(ENGLISH));
+			stems += unique.size();
+		}
+		return stems;
+	}
+
+	/**
+	 * Parses every query line with the shared caching stemmer
+	 *
+	 * @return the number of unique stems found
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TOKENS)
+	public long queryCached() {
+		long stems = 0;
+		for (String line : lines) {
+			stems += WordCleaner.uniqueStems(line).size();
+		}
+		return stems;
+	}
+}
@@ -0,0 +1,122 @@
+package edu.usfca.cs272;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the task throughput of the shared {@link WorkQueue} against the
+ * {@link StealingWorkQueue} from 1 to 64 worker threads, both for tasks added
+ * from outside the queue and for tasks that add more tasks, like directory
+ * listings and crawls do. Build with {@code mvn -P jmh package} and run with
+ * {@code java -jar target/benchmarks.jar WorkQueueBenchmark}.
+ *
+ * @author ryank
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WorkQueueBenchmark {
+
+	/**
+	 * the number of tasks each invocation runs
+	 */
+	private static final int TASKS = 10_000;
+
+	/**
+	 * the number of tasks each nested task adds
+	 */
+	private static final int SUBTASKS = 100;
+
+	/**
+	 * the number of worker threads
+	 */
+	@Param({ "1", "2", "4", "8", "16", "32", "64" })
+	int threads;
+
+	/**
+	 * the work queue to measure, either the shared "queue" or "steal"
+	 */
+	@Param({ "queue", "steal" })
+	String queue;
+
+	/**
+	 * the work queue being measured
+	 */
+	private WorkQueueInterface workQueue;
+
+	/**
+	 * counts the tasks run, so that they do some work
+	 */
+	private LongAdder counter;
+
+	/**
+	 * Starts the work queue
+	 */
+	@Setup(Level.Trial)
+	public void setup() {
+		workQueue = queue.equals("steal") ? new StealingWorkQueue(threads) : new WorkQueue(threads);
+		counter = new LongAdder();
+	}
+
+	/**
+	 * Stops the work queue
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		workQueue.join();
+	}
+
+	/**
+	 * Adds every task from the benchmark thread and waits for them to finish
+	 *
+	 * @return the number of tasks run so far
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TASKS)
+	public long flat() {
+		for (int i = 0; i < TASKS; i++) {
+			workQueue.execute(counter::increment);
+		}
+		workQueue.finish();
+		return counter.sum();
+	}
+
+	/**
+	 * Adds tasks that each add more tasks from a worker and waits for them all to
+	 * finish, counting only the added tasks as operations
+	 *
+	 * @return the number of tasks run so far
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TASKS)
+	public long nested() {
+		for (int i = 0; i < TASKS / SUBTASKS; i++) {
+			workQueue.execute(() -> {
+				for (int j = 0; j < SUBTASKS; j++) {
+					workQueue.execute(counter::increment);
+				}
+			});
+		}
+		workQueue.finish();
+		return counter.sum();
+	}
+}